@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2013 The ChameleonOS Project
+ *
+ * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.thememanager;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Decodes images at the smallest power of two sample size that still covers the size
+ * they will be shown at.  The header is read first to get the bounds and to find out if
+ * the image has alpha, opaque images are decoded as RGB_565.  Decodes at full size can
+ * reuse a bitmap from the BitmapPool.
+ */
+public final class BitmapDecoder {
+    private static final int PNG_SIGNATURE_LENGTH = 8;
+    private static final long PNG_SIGNATURE = 0x89504e470d0a1a0aL;
+    private static final int PNG_IHDR = 0x49484452;
+    private static final int PNG_TRNS = 0x74524e53;
+    private static final int PNG_IDAT = 0x49444154;
+    private static final int PNG_IEND = 0x49454e44;
+    private static final int PNG_COLOR_GRAY_ALPHA = 4;
+    private static final int PNG_COLOR_RGB_ALPHA = 6;
+    // more than enough for BitmapFactory to read the bounds of a jpeg
+    private static final int HEADER_MARK_LIMIT = 64 * 1024;
+
+    /**
+     * Opens a fresh stream over the image each time it is called
+     */
+    public interface StreamOpener {
+        InputStream open() throws IOException;
+    }
+
+    private BitmapDecoder() {
+    }
+
+    /**
+     * Decodes the image so it covers reqWidth x reqHeight, a size of 0 or less leaves
+     * that dimension unconstrained.  Returns null if the image could not be decoded.
+     */
+    public static Bitmap decode(StreamOpener opener, int reqWidth, int reqHeight) throws IOException {
+        BitmapFactory.Options opts = readOptions(opener, reqWidth, reqHeight);
+        if (opts == null)
+            return null;
+        return decode(opener, opts);
+    }
+
+    /**
+     * Decodes the image with options previously returned by readOptions.  This lets a
+     * series of images of the same size, like animation frames, skip reading headers.
+     */
+    public static Bitmap decode(StreamOpener opener, BitmapFactory.Options opts) throws IOException {
+        opts.inJustDecodeBounds = false;
+        opts.inMutable = true;
+        opts.inBitmap = null;
+        // only same size, unsampled decodes can reuse a bitmap on this platform
+        if (opts.inSampleSize == 1 && opts.outWidth > 0 && opts.outHeight > 0) {
+            opts.inBitmap = BitmapPool.getInstance().get(opts.outWidth, opts.outHeight,
+                    opts.inPreferredConfig);
+        }
+
+        Bitmap bmp;
+        InputStream in = opener.open();
+        try {
+            bmp = BitmapFactory.decodeStream(in, null, opts);
+        } catch (IllegalArgumentException e) {
+            bmp = null;
+            if (opts.inBitmap == null)
+                throw e;
+        } finally {
+            in.close();
+        }
+        if (bmp == null && opts.inBitmap != null) {
+            // the pooled bitmap did not fit after all, decode into a new one
+            BitmapPool.getInstance().put(opts.inBitmap);
+            opts.inBitmap = null;
+            in = opener.open();
+            try {
+                bmp = BitmapFactory.decodeStream(in, null, opts);
+            } finally {
+                in.close();
+            }
+        }
+        opts.inBitmap = null;
+        return bmp;
+    }
+
+    /**
+     * Reads the image header and returns options to decode it at reqWidth x reqHeight,
+     * or null if the header could not be read
+     */
+    public static BitmapFactory.Options readOptions(StreamOpener opener, int reqWidth,
+            int reqHeight) throws IOException {
+        BitmapFactory.Options opts = new BitmapFactory.Options();
+        InputStream in = new BufferedInputStream(opener.open());
+        try {
+            in.mark(HEADER_MARK_LIMIT);
+            if (!readPngHeader(in, opts)) {
+                in.reset();
+                opts.inJustDecodeBounds = true;
+                BitmapFactory.decodeStream(in, null, opts);
+                opts.inJustDecodeBounds = false;
+                // jpegs never have alpha, be safe with anything else
+                opts.inPreferredConfig = "image/jpeg".equals(opts.outMimeType)
+                        ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+            }
+        } finally {
+            in.close();
+        }
+        if (opts.outWidth <= 0 || opts.outHeight <= 0)
+            return null;
+        opts.inSampleSize = calculateInSampleSize(opts.outWidth, opts.outHeight,
+                reqWidth, reqHeight);
+        return opts;
+    }
+
+    /**
+     * Returns the largest power of two that keeps width x height at least
+     * reqWidth x reqHeight
+     */
+    public static int calculateInSampleSize(int width, int height, int reqWidth, int reqHeight) {
+        int sampleSize = 1;
+        if (reqWidth <= 0 && reqHeight <= 0)
+            return sampleSize;
+        while ((reqWidth <= 0 || width / (sampleSize * 2) >= reqWidth)
+                && (reqHeight <= 0 || height / (sampleSize * 2) >= reqHeight))
+            sampleSize *= 2;
+        return sampleSize;
+    }
+
+    /**
+     * Reads the bounds of a png from its IHDR chunk and looks for alpha in the color
+     * type or a tRNS chunk.  Returns false if in is not a png.
+     */
+    private static boolean readPngHeader(InputStream in, BitmapFactory.Options opts)
+            throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        byte[] signature = new byte[PNG_SIGNATURE_LENGTH];
+        try {
+            data.readFully(signature);
+        } catch (IOException e) {
+            return false;
+        }
+        long value = 0;
+        for (byte b : signature)
+            value = (value << 8) | (b & 0xff);
+        if (value != PNG_SIGNATURE)
+            return false;
+
+        opts.outMimeType = "image/png";
+        boolean hasAlpha = false;
+        while (true) {
+            int length = data.readInt();
+            int type = data.readInt();
+            if (type == PNG_IHDR) {
+                opts.outWidth = data.readInt();
+                opts.outHeight = data.readInt();
+                data.readUnsignedByte(); // bit depth
+                int colorType = data.readUnsignedByte();
+                hasAlpha = colorType == PNG_COLOR_GRAY_ALPHA || colorType == PNG_COLOR_RGB_ALPHA;
+                skipFully(data, length - 10 + 4);
+            } else if (type == PNG_TRNS) {
+                hasAlpha = true;
+                break;
+            } else if (type == PNG_IDAT || type == PNG_IEND) {
+                break;
+            } else {
+                skipFully(data, length + 4);
+            }
+            if (hasAlpha)
+                break;
+        }
+        opts.inPreferredConfig = hasAlpha ? Bitmap.Config.ARGB_8888 : Bitmap.Config.RGB_565;
+        return true;
+    }
+
+    private static void skipFully(InputStream in, long count) throws IOException {
+        while (count > 0) {
+            long skipped = in.skip(count);
+            if (skipped <= 0) {
+                if (in.read() < 0)
+                    throw new IOException("Unexpected end of stream");
+                skipped = 1;
+            }
+            count -= skipped;
+        }
+    }
+
+    public static StreamOpener fromFile(final File file) {
+        return new StreamOpener() {
+            @Override
+            public InputStream open() throws IOException {
+                return new FileInputStream(file);
+            }
+        };
+    }
+
+    public static StreamOpener fromArchiveEntry(final ThemeArchiveProbe archive,
+            final ThemeArchiveProbe.EntryInfo entry) {
+        return new StreamOpener() {
+            @Override
+            public InputStream open() throws IOException {
+                return archive.openEntry(entry);
+            }
+        };
+    }
+
+    public static StreamOpener fromZipEntry(final ZipFile zip, final ZipEntry entry) {
+        return new StreamOpener() {
+            @Override
+            public InputStream open() throws IOException {
+                return zip.getInputStream(entry);
+            }
+        };
+    }
+}
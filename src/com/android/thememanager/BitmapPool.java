@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2013 The ChameleonOS Project
+ *
+ * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.thememanager;
+
+import android.graphics.Bitmap;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * Bitmaps that are no longer shown anywhere, kept so BitmapDecoder can decode into
+ * them instead of allocating.  Bitmaps are bucketed by size and config since inBitmap
+ * needs an exact match on this platform.
+ *
+ * Shared bitmaps are reference counted: the memory cache and every view showing a
+ * bitmap retain it, and it only enters the pool once the last holder releases it.
+ */
+public final class BitmapPool {
+    private static final int MAX_BYTES = 8 * 1024 * 1024;
+
+    private static BitmapPool sInstance;
+
+    private final Map<String, LinkedList<Bitmap>> mBuckets =
+            new HashMap<String, LinkedList<Bitmap>>();
+    // pooled bitmaps, least recently pooled first
+    private final LinkedList<Bitmap> mLru = new LinkedList<Bitmap>();
+    private final Map<Bitmap, Integer> mRefs = new IdentityHashMap<Bitmap, Integer>();
+    private int mSize = 0;
+
+    public static synchronized BitmapPool getInstance() {
+        if (sInstance == null)
+            sInstance = new BitmapPool();
+        return sInstance;
+    }
+
+    private BitmapPool() {
+    }
+
+    /**
+     * Returns a pooled bitmap of exactly width x height and config, or null
+     */
+    public synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+        LinkedList<Bitmap> bitmaps = mBuckets.get(key(width, height, config));
+        if (bitmaps == null || bitmaps.isEmpty())
+            return null;
+        Bitmap bmp = bitmaps.removeLast();
+        mLru.remove(bmp);
+        mSize -= bmp.getByteCount();
+        return bmp;
+    }
+
+    /**
+     * Marks bmp as in use by one more holder
+     */
+    public synchronized void retain(Bitmap bmp) {
+        if (bmp == null)
+            return;
+        Integer refs = mRefs.get(bmp);
+        mRefs.put(bmp, refs == null ? 1 : refs + 1);
+    }
+
+    /**
+     * Drops one holder of bmp, the last release hands it over to the pool
+     */
+    public synchronized void release(Bitmap bmp) {
+        if (bmp == null)
+            return;
+        Integer refs = mRefs.get(bmp);
+        if (refs != null && refs > 1) {
+            mRefs.put(bmp, refs - 1);
+            return;
+        }
+        mRefs.remove(bmp);
+        put(bmp);
+    }
+
+    /**
+     * Hands a bitmap nobody else references over to the pool, it is recycled if it can
+     * not be reused
+     */
+    public synchronized void put(Bitmap bmp) {
+        if (bmp == null || bmp.isRecycled() || mRefs.containsKey(bmp))
+            return;
+        int size = bmp.getByteCount();
+        if (!bmp.isMutable() || bmp.getConfig() == null || size > MAX_BYTES) {
+            bmp.recycle();
+            return;
+        }
+        while (mSize + size > MAX_BYTES && !mLru.isEmpty())
+            evict(mLru.getFirst());
+
+        String key = key(bmp.getWidth(), bmp.getHeight(), bmp.getConfig());
+        LinkedList<Bitmap> bitmaps = mBuckets.get(key);
+        if (bitmaps == null) {
+            bitmaps = new LinkedList<Bitmap>();
+            mBuckets.put(key, bitmaps);
+        }
+        bitmaps.addLast(bmp);
+        mLru.addLast(bmp);
+        mSize += size;
+    }
+
+    public synchronized void clear() {
+        while (!mLru.isEmpty())
+            evict(mLru.getFirst());
+    }
+
+    private void evict(Bitmap bmp) {
+        mLru.remove(bmp);
+        LinkedList<Bitmap> bitmaps = mBuckets.get(key(bmp.getWidth(), bmp.getHeight(),
+                bmp.getConfig()));
+        if (bitmaps != null)
+            bitmaps.remove(bmp);
+        mSize -= bmp.getByteCount();
+        bmp.recycle();
+    }
+
+    private static String key(int width, int height, Bitmap.Config config) {
+        return width + "x" + height + ":" + config;
+    }
+}
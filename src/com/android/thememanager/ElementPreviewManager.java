@@ -16,72 +16,63 @@
 package com.android.thememanager;
 
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.drawable.BitmapDrawable;
 import android.os.Handler;
 import android.os.Message;
 import android.util.Log;
 import android.view.View;
 
-import java.io.IOException;
-import java.io.InputStream;
-import java.util.Map;
-import java.util.WeakHashMap;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
-
 public class ElementPreviewManager {
     private static final boolean DEBUG = false;
-    private final Map<String, BitmapDrawable> drawableMap;
+    private final PreviewCache mCache = PreviewCache.getInstance();
+    private final int mWidth;
+    private final int mHeight;
 
-    public ElementPreviewManager() {
-        drawableMap = new WeakHashMap<String, BitmapDrawable>();
+    /**
+     * @param width width of the cells previews are decoded for
+     * @param height height of the cells previews are decoded for
+     */
+    public ElementPreviewManager(int width, int height) {
+        mWidth = width;
+        mHeight = height;
     }
 
-    @SuppressWarnings("deprecation")
-    public BitmapDrawable fetchDrawable(Theme theme, int elementType) {
-        String themeId = theme.getFileName();
-        if (drawableMap.containsKey(themeId)) {
-            return drawableMap.get(themeId);
+    /**
+     * Loads the preview and hands it to callback, which must release it to the BitmapPool
+     */
+    public void fetchBitmap(ThemeSummary theme, int elementType, PreviewLoader.Callback callback) {
+        String entryName = getPreviewEntry(theme, elementType);
+        if (entryName == null) {
+            callback.onThumbnailLoaded(null);
+            return;
         }
-
         if (DEBUG)
-            Log.d(this.getClass().getSimpleName(), "theme ID:" + themeId);
-        try {
-            InputStream is = fetch(theme, elementType);
-            BitmapDrawable drawable = null;
-            if (is != null) {
-                BitmapFactory.Options opts = new BitmapFactory.Options();
-                opts.inPreferredConfig = Bitmap.Config.RGB_565;
-                opts.inSampleSize = 2;
-                Bitmap bmp = BitmapFactory.decodeStream(is, null, opts);
-                drawable = new BitmapDrawable(bmp);
-                is.close();
-            }
-
-            if (drawable != null) {
-                drawableMap.put(themeId, drawable);
-                if (DEBUG)
-                    Log.d(this.getClass().getSimpleName(), "got a thumbnail drawable: " + drawable.getBounds() + ", "
-                            + drawable.getIntrinsicHeight() + "," + drawable.getIntrinsicWidth() + ", "
-                            + drawable.getMinimumHeight() + "," + drawable.getMinimumWidth());
-            } else {
-                if (DEBUG)
-                    Log.w(this.getClass().getSimpleName(), "could not get thumbnail");
-            }
+            Log.d(this.getClass().getSimpleName(), "theme ID:" + theme.getFileName());
+        PreviewLoader.loadThumbnail(theme, entryName, mWidth, mHeight, callback);
+    }
 
-            return drawable;
-        } catch (IOException e) {
-            if (DEBUG)
-                Log.e(this.getClass().getSimpleName(), "fetchDrawable failed", e);
-            return null;
-        }
+    /**
+     * Builds the cache key of the preview shown for theme in the mixer of elementType, or
+     * null if the theme has none.  The key names the archive, the entry holding the
+     * element's first preview and the cell size, so mixers showing the same image share
+     * it and mixers showing different ones never do.
+     */
+    public String key(ThemeSummary theme, int elementType) {
+        String entryName = getPreviewEntry(theme, elementType);
+        return entryName != null ? PreviewCache.key(theme, entryName, mWidth, mHeight) : null;
     }
 
-    public void fetchDrawableOnThread(final Theme theme, final int elementType, final PreviewHolder holder) {
-        String themeId = theme.getFileName();
-        if (drawableMap.containsKey(themeId)) {
-            holder.preview.setImageDrawable(drawableMap.get(themeId));
+    @SuppressWarnings("deprecation")
+    public void fetchDrawableOnThread(final ThemeSummary theme, final int elementType, final PreviewHolder holder) {
+        String cacheKey = key(theme, elementType);
+        final String key = cacheKey != null
+                ? cacheKey : theme.getFileName() + '#' + elementType;
+        holder.pendingKey = key;
+        Bitmap cached = cacheKey != null ? mCache.acquire(cacheKey) : null;
+        if (cached != null) {
+            holder.pendingKey = null;
+            holder.bitmap = cached;
+            holder.preview.setImageDrawable(new BitmapDrawable(cached));
             holder.progress.setVisibility(View.GONE);
             return;
         }
@@ -89,72 +80,85 @@ public class ElementPreviewManager {
         final Handler handler = new Handler() {
             @Override
             public void handleMessage(Message message) {
+                Bitmap bmp = (Bitmap) message.obj;
+                // the cell was recycled or cancelled while decoding
+                if (!key.equals(holder.pendingKey)) {
+                    BitmapPool.getInstance().release(bmp);
+                    return;
+                }
+                holder.pendingKey = null;
+                holder.pendingTask = null;
                 long delay = 0;
                 delay = holder.index * 50;
-                if (message.obj != null)
-                    holder.preview.setImageDrawableAnimated((BitmapDrawable) message.obj, delay);
-                else
+                if (bmp != null) {
+                    holder.bitmap = bmp;
+                    holder.preview.setImageDrawableAnimated(new BitmapDrawable(bmp), delay);
+                } else
                     holder.preview.setImageResourceAnimated(R.drawable.no_preview, delay);
                 holder.progress.setVisibility(View.GONE);
             }
         };
 
-        Thread thread = new Thread() {
+        holder.pendingTask = PreviewExecutor.execute(this, PreviewExecutor.PRIORITY_VISIBLE,
+                new Runnable() {
             @Override
             public void run() {
-                //TODO : set imageView to a "pending" image
-                BitmapDrawable drawable = fetchDrawable(theme, elementType);
-                Message message = handler.obtainMessage(1, drawable);
-                handler.sendMessage(message);
+                if (!key.equals(holder.pendingKey))
+                    return;
+                fetchBitmap(theme, elementType, new PreviewLoader.Callback() {
+                    @Override
+                    public void onThumbnailLoaded(Bitmap bmp) {
+                        if (DEBUG && bmp == null)
+                            Log.w(ElementPreviewManager.class.getSimpleName(),
+                                    "could not get thumbnail");
+                        Message message = handler.obtainMessage(1, bmp);
+                        handler.sendMessage(message);
+                    }
+                });
+                // a theme the user looked at here is likely picked in the next mixer too
+                prefetch(theme, Theme.getNextElement(elementType),
+                        PreviewExecutor.PRIORITY_SPECULATIVE);
             }
-        };
-        thread.start();
+        });
     }
 
-    private InputStream fetch(Theme theme, int elementType) throws IOException {
-        String previewName = "";
-        try{
-            switch(elementType) {
-                case Theme.THEME_ELEMENT_TYPE_ICONS:
-                    previewName = PreviewHelper.getIconPreviews(theme)[0];
-                    break;
-                case Theme.THEME_ELEMENT_TYPE_WALLPAPER:
-                    previewName = PreviewHelper.getWallpaperPreviews(theme)[0];
-                    break;
-                case Theme.THEME_ELEMENT_TYPE_LOCK_WALLPAPER:
-                    previewName = PreviewHelper.getLockWallpaperPreviews(theme)[0];
-                    break;
-                case Theme.THEME_ELEMENT_TYPE_SYSTEMUI:
-                    previewName = PreviewHelper.getStatusbarPreviews(theme)[0];
-                    break;
-                case Theme.THEME_ELEMENT_TYPE_FRAMEWORK:
-                    previewName = PreviewHelper.getLauncherPreviews(theme)[0];
-                    break;
-                case Theme.THEME_ELEMENT_TYPE_CONTACTS:
-                    previewName = PreviewHelper.getContactsPreviews(theme)[0];
-                    break;
-                case Theme.THEME_ELEMENT_TYPE_DIALER:
-                    previewName = PreviewHelper.getDialerPreviews(theme)[0];
-                    break;
-                case Theme.THEME_ELEMENT_TYPE_RINGTONES:
-                    previewName = PreviewHelper.getContactsPreviews(theme)[0];
-                    break;
-                case Theme.THEME_ELEMENT_TYPE_BOOTANIMATION:
-                    previewName = PreviewHelper.getBootanimationPreviews(theme)[0];
-                    break;
-                case Theme.THEME_ELEMENT_TYPE_MMS:
-                    previewName = PreviewHelper.getMmsPreviews(theme)[0];
-                    break;
-                case Theme.THEME_ELEMENT_TYPE_FONT:
-                    previewName = PreviewHelper.getFontsPreviews(theme)[0];
-                    break;
+    /**
+     * Drops the pending load for holder, a decode already running is still cached
+     */
+    public void cancel(PreviewHolder holder) {
+        holder.pendingKey = null;
+        if (holder.pendingTask != null)
+            PreviewExecutor.cancel(holder.pendingTask);
+        holder.pendingTask = null;
+    }
+
+    /**
+     * Drops every queued load and prefetch made through this manager
+     */
+    public void cancelAll() {
+        PreviewExecutor.cancelAll(this);
+    }
+
+    /**
+     * Decodes the preview into the cache ahead of a cell being bound to it
+     */
+    public void prefetch(ThemeSummary theme, int elementType) {
+        prefetch(theme, elementType, PreviewExecutor.PRIORITY_PREFETCH);
+    }
+
+    private void prefetch(final ThemeSummary theme, final int elementType, int priority) {
+        String key = key(theme, elementType);
+        if (key == null || mCache.contains(key))
+            return;
+        PreviewExecutor.execute(this, priority, new Runnable() {
+            @Override
+            public void run() {
+                fetchBitmap(theme, elementType, PreviewLoader.RELEASE);
             }
-        } catch (Exception e) {
-            previewName = null;
-        }
+        });
+    }
 
-        ZipFile zip = new ZipFile(theme.getThemePath());
-        ZipEntry ze = previewName != null ? zip.getEntry(previewName) : null;
-        return ze != null ? zip.getInputStream(ze) : null;
+    private static String getPreviewEntry(ThemeSummary theme, int elementType) {
+        return PreviewHelper.getElementPreview(theme, elementType);
     }
 }
@@ -32,4 +32,6 @@ public class Globals {
 
     public static final String ACTION_THEME_APPLIED = "com.android.server.ThemeManager.action.THEME_APPLIED";
     public static final String ACTION_THEME_NOT_APPLIED = "com.android.server.ThemeManager.action.THEME_NOT_APPLIED";
+    // sent to this package once a scan added, changed or removed themes
+    public static final String ACTION_THEME_LIBRARY_CHANGED = "com.android.thememanager.action.THEME_LIBRARY_CHANGED";
 }
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2013 The ChameleonOS Project
+ *
+ * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.thememanager;
+
+import android.content.Context;
+import android.os.AsyncTask;
+import android.util.LruCache;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Read only list of ThemeSummary that loads the matching rows one page at a time.
+ * Only a few pages are kept so large libraries are never loaded up front.
+ *
+ * The ids of the matching themes, in query order, are read once when the list is built
+ * and pages are fetched by id, so rows the scanner adds or removes later can not shift
+ * themes between pages.  A theme deleted since then is returned as a missing summary
+ * carrying only its id, which the grids show without a preview, until the owner
+ * rebuilds the list on Globals.ACTION_THEME_LIBRARY_CHANGED.
+ */
+public class PagedThemeSummaryList extends AbstractList<ThemeSummary> {
+    public static final int DEFAULT_PAGE_SIZE = 30;
+    private static final int MAX_OPEN_PAGES = 3;
+
+    private final Context mContext;
+    private final ThemeQuery mQuery;
+    private final int mPageSize;
+    private long[] mIds;
+    private final LruCache<Integer, ThemeSummary[]> mPages =
+            new LruCache<Integer, ThemeSummary[]>(MAX_OPEN_PAGES);
+    // pages being read in the background
+    private final Set<Integer> mLoading = Collections.synchronizedSet(new HashSet<Integer>());
+
+    public PagedThemeSummaryList(Context context, ThemeQuery query) {
+        this(context, query, DEFAULT_PAGE_SIZE);
+    }
+
+    public PagedThemeSummaryList(Context context, ThemeQuery query, int pageSize) {
+        mContext = context.getApplicationContext();
+        mQuery = query.copy();
+        mPageSize = pageSize;
+        ThemesDataSource dataSource = new ThemesDataSource(mContext);
+        dataSource.open();
+        mIds = dataSource.queryThemeIds(mQuery);
+        dataSource.close();
+    }
+
+    @Override
+    public ThemeSummary get(int position) {
+        if (position < 0 || position >= mIds.length)
+            throw new IndexOutOfBoundsException("Invalid position " + position);
+        int page = position / mPageSize;
+        ThemeSummary[] summaries = mPages.get(page);
+        if (summaries == null) {
+            summaries = loadPage(pageIds(page));
+            mPages.put(page, summaries);
+        }
+        // read the next page before the grid scrolls into it
+        if (position % mPageSize >= mPageSize / 2)
+            prefetchPage(page + 1);
+        return summaries[position % mPageSize];
+    }
+
+    @Override
+    public int size() {
+        return mIds.length;
+    }
+
+    public void close() {
+        mPages.evictAll();
+        mIds = new long[0];
+    }
+
+    private long[] pageIds(int page) {
+        int from = page * mPageSize;
+        return Arrays.copyOfRange(mIds, from, Math.min(from + mPageSize, mIds.length));
+    }
+
+    private void prefetchPage(final int page) {
+        if (page * mPageSize >= mIds.length || mPages.get(page) != null || !mLoading.add(page))
+            return;
+        final long[] ids = pageIds(page);
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    ThemeSummary[] summaries = loadPage(ids);
+                    if (mPages.get(page) == null)
+                        mPages.put(page, summaries);
+                } finally {
+                    mLoading.remove(page);
+                }
+            }
+        });
+    }
+
+    /**
+     * Reads the summaries of ids, in the order of ids
+     */
+    private ThemeSummary[] loadPage(long[] ids) {
+        ThemesDataSource dataSource = new ThemesDataSource(mContext);
+        dataSource.open();
+        ThemeSummaryList rows = dataSource.querySummaries(mQuery, ids);
+        dataSource.close();
+        Map<Long, ThemeSummary> byId = new HashMap<Long, ThemeSummary>(rows.size());
+        for (ThemeSummary summary : rows)
+            byId.put(summary.getId(), summary);
+        rows.close();
+
+        ThemeSummary[] summaries = new ThemeSummary[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            summaries[i] = byId.get(ids[i]);
+            if (summaries[i] == null) {
+                // deleted since the list was built
+                summaries[i] = new ThemeSummary();
+                summaries[i].setId(ids[i]);
+                summaries[i].setMissing(true);
+            }
+        }
+        return summaries;
+    }
+}
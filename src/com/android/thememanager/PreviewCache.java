@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2013 The ChameleonOS Project
+ *
+ * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.thememanager;
+
+import android.graphics.Bitmap;
+import android.util.LruCache;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Process wide memory cache of decoded previews, shared by the grids and the detail
+ * pagers.  The cache is bounded by the byte size of the bitmaps it holds and evicts
+ * the least recently used preview first.  Evicted bitmaps are released to the BitmapPool.
+ */
+public final class PreviewCache {
+    // fraction of the heap the cache may use
+    private static final int HEAP_FRACTION = 8;
+
+    private static PreviewCache sInstance;
+
+    private final LruCache<String, Bitmap> mCache;
+    private final AtomicInteger mHits = new AtomicInteger();
+    private final AtomicInteger mMisses = new AtomicInteger();
+
+    public static synchronized PreviewCache getInstance() {
+        if (sInstance == null)
+            sInstance = new PreviewCache((int) (Runtime.getRuntime().maxMemory() / HEAP_FRACTION));
+        return sInstance;
+    }
+
+    private PreviewCache(int maxBytes) {
+        mCache = new LruCache<String, Bitmap>(maxBytes) {
+            @Override
+            protected int sizeOf(String key, Bitmap value) {
+                return value.getByteCount();
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, String key, Bitmap oldValue,
+                    Bitmap newValue) {
+                BitmapPool.getInstance().release(oldValue);
+            }
+        };
+    }
+
+    /**
+     * Builds the key for a preview of theme decoded for the given target size.  The
+     * theme's last modified time is part of the key so a replaced theme is never served
+     * stale previews.
+     */
+    public static String key(ThemeSummary theme, String entryName, int width, int height) {
+        return theme.getFileName() + '@' + theme.getLastModified() + '/' + entryName
+                + '#' + width + 'x' + height;
+    }
+
+    public Bitmap get(String key) {
+        Bitmap bitmap = mCache.get(key);
+        if (bitmap != null)
+            mHits.incrementAndGet();
+        else
+            mMisses.incrementAndGet();
+        return bitmap;
+    }
+
+    /**
+     * Checks for a cached preview without counting towards the hit rate
+     */
+    public boolean contains(String key) {
+        return mCache.get(key) != null;
+    }
+
+    /**
+     * Like get but also retains the bitmap for the caller, who must hand it back with
+     * BitmapPool.release once it is no longer shown
+     */
+    public Bitmap acquire(String key) {
+        BitmapPool pool = BitmapPool.getInstance();
+        // holding the pool keeps an eviction from pooling the bitmap before it is retained
+        synchronized (pool) {
+            Bitmap bitmap = get(key);
+            pool.retain(bitmap);
+            return bitmap;
+        }
+    }
+
+    /**
+     * Caches bitmap, the cache holds its own reference to it
+     */
+    public void put(String key, Bitmap bitmap) {
+        if (key != null && bitmap != null) {
+            BitmapPool.getInstance().retain(bitmap);
+            mCache.put(key, bitmap);
+        }
+    }
+
+    /**
+     * Drops every cached preview of the theme with the given file name
+     */
+    public void invalidate(String fileName) {
+        String prefix = fileName + '@';
+        for (String key : mCache.snapshot().keySet()) {
+            if (key.startsWith(prefix))
+                mCache.remove(key);
+        }
+    }
+
+    public int getHitCount() {
+        return mHits.get();
+    }
+
+    public int getMissCount() {
+        return mMisses.get();
+    }
+
+    public int getSize() {
+        return mCache.size();
+    }
+
+    public int getMaxSize() {
+        return mCache.maxSize();
+    }
+
+    @Override
+    public String toString() {
+        int hits = mHits.get();
+        int accesses = hits + mMisses.get();
+        return "PreviewCache[bytes=" + mCache.size() + "/" + mCache.maxSize()
+                + ",hits=" + hits + ",misses=" + mMisses.get()
+                + ",hitRate=" + (accesses != 0 ? 100 * hits / accesses : 0) + "%]";
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2013 The ChameleonOS Project
+ *
+ * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.thememanager;
+
+import android.os.Process;
+
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process wide executor for preview decodes.  A small fixed number of workers keeps the
+ * flash and the decoder from being swamped, and queued decodes run visible cells first,
+ * newest request first, so whatever is on screen right now is decoded before cells the
+ * user has already scrolled past.
+ */
+public final class PreviewExecutor {
+    public static final int PRIORITY_VISIBLE = 0;
+    public static final int PRIORITY_PREFETCH = 1;
+    // decodes for a screen the user has not opened yet
+    public static final int PRIORITY_SPECULATIVE = 2;
+
+    private static final int MAX_DECODE_THREADS = 3;
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static final AtomicLong sSequence = new AtomicLong();
+
+    private static final ThreadFactory sDecodeThreadFactory = new ThreadFactory() {
+        private final AtomicInteger mCount = new AtomicInteger(1);
+
+        @Override
+        public Thread newThread(final Runnable r) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, "PreviewDecoder #" + mCount.getAndIncrement());
+        }
+    };
+
+    private static final ThreadPoolExecutor sExecutor;
+    static {
+        int workers = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(),
+                MAX_DECODE_THREADS));
+        sExecutor = new ThreadPoolExecutor(workers, workers, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<Runnable>(), sDecodeThreadFactory);
+        sExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    private PreviewExecutor() {
+    }
+
+    /**
+     * Queues job to run on a decode worker
+     * @param owner used to cancel every queued job of a grid at once, see cancelAll
+     * @param priority PRIORITY_VISIBLE, PRIORITY_PREFETCH or PRIORITY_SPECULATIVE
+     */
+    public static Task execute(Object owner, int priority, Runnable job) {
+        Task task = new Task(owner, priority, job);
+        sExecutor.execute(task);
+        return task;
+    }
+
+    /**
+     * Removes task from the queue, a task that is already running finishes on its own
+     */
+    public static void cancel(Task task) {
+        task.mCancelled = true;
+        sExecutor.remove(task);
+    }
+
+    /**
+     * Cancels every queued task that was submitted for owner
+     */
+    public static void cancelAll(Object owner) {
+        for (Object queued : sExecutor.getQueue().toArray()) {
+            Task task = (Task) queued;
+            if (task.mOwner == owner)
+                cancel(task);
+        }
+    }
+
+    public static final class Task implements Runnable, Comparable<Task> {
+        private final Object mOwner;
+        private final int mPriority;
+        private final long mSequence;
+        private final Runnable mJob;
+        private volatile boolean mCancelled = false;
+
+        private Task(Object owner, int priority, Runnable job) {
+            mOwner = owner;
+            mPriority = priority;
+            mSequence = sSequence.incrementAndGet();
+            mJob = job;
+        }
+
+        public boolean isCancelled() {
+            return mCancelled;
+        }
+
+        @Override
+        public void run() {
+            if (!mCancelled)
+                mJob.run();
+        }
+
+        @Override
+        public int compareTo(Task another) {
+            if (mPriority != another.mPriority)
+                return mPriority < another.mPriority ? -1 : 1;
+            // LIFO, the most recently bound cell is the one most likely still on screen
+            if (mSequence != another.mSequence)
+                return mSequence > another.mSequence ? -1 : 1;
+            return 0;
+        }
+    }
+}
@@ -15,6 +15,8 @@
 
 package com.android.thememanager;
 
+import android.text.TextUtils;
+
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -31,59 +33,212 @@ public class PreviewHelper {
     public static final String PREVIEW_FONTS_PREFIX = "preview_fonts_";
     public static final String PREVIEW_WALLPAPER_PREFIX = "default_wallpaper";
     public static final String PREVIEW_LOCK_WALLPAPER_PREFIX = "default_lock_wallpaper";
+    public static final String MAIN_PREVIEW = "preview/preview_launcher_0.png";
+
+    // Preview types, each groups the previews of one part of a theme
+    public static final int PREVIEW_TYPE_LAUNCHER = 0;
+    public static final int PREVIEW_TYPE_ICONS = 1;
+    public static final int PREVIEW_TYPE_STATUSBAR = 2;
+    public static final int PREVIEW_TYPE_MMS = 3;
+    public static final int PREVIEW_TYPE_CONTACTS = 4;
+    public static final int PREVIEW_TYPE_DIALER = 5;
+    public static final int PREVIEW_TYPE_BOOTANIMATION = 6;
+    public static final int PREVIEW_TYPE_FONTS = 7;
+    public static final int PREVIEW_TYPE_WALLPAPER = 8;
+    public static final int PREVIEW_TYPE_LOCK_WALLPAPER = 9;
+    public static final int PREVIEW_TYPE_COUNT = 10;
+
+    // indexed by preview type, no entry name matches more than one of these
+    private static final String[] sTypePrefixes = {
+            PREVIEW_LAUNCHER_PREFIX,
+            PREVIEW_ICONS_PREFIX,
+            PREVIEW_STATUSBAR_PREFIX,
+            PREVIEW_MMS_PREFIX,
+            PREVIEW_CONTACTS_PREFIX,
+            PREVIEW_DIALER_PREFIX,
+            PREVIEW_BOOTANIMATION_PREFIX,
+            PREVIEW_FONTS_PREFIX,
+            PREVIEW_WALLPAPER_PREFIX,
+            PREVIEW_LOCK_WALLPAPER_PREFIX };
+
+    private static final String[] EMPTY = new String[0];
+
+    /**
+     * Returns the sorted previews of the given type.  The array is shared with the
+     * theme's preview index and must not be modified.
+     */
+    public static String[] getPreviews(ThemeSummary theme, int type) {
+        String[][] index = getPreviewIndex(theme);
+        return index[type] != null ? index[type] : EMPTY;
+    }
+
+    /**
+     * Returns the previews of theme grouped by type, reading the preview list only the
+     * first time it is asked for when the index was not loaded from the database.
+     * Summaries loaded without either get an empty index.
+     */
+    public static String[][] getPreviewIndex(ThemeSummary theme) {
+        String[][] index = theme.getPreviewIndex();
+        if (index == null) {
+            String previews = theme.getPreviewsList();
+            if (previews == null)
+                return new String[PREVIEW_TYPE_COUNT][];
+            index = buildPreviewIndex(TextUtils.split(previews, "\\|"));
+            theme.setPreviewIndex(index);
+        }
+        return index;
+    }
+
+    /**
+     * Groups previews by type, each group sorted by entry name
+     */
+    public static String[][] buildPreviewIndex(String[] previews) {
+        List<List<String>> groups = new ArrayList<List<String>>(PREVIEW_TYPE_COUNT);
+        for (int i = 0; i < PREVIEW_TYPE_COUNT; i++)
+            groups.add(null);
+        for (String preview : previews) {
+            int type = getPreviewType(preview);
+            if (type < 0)
+                continue;
+            List<String> group = groups.get(type);
+            if (group == null) {
+                group = new ArrayList<String>();
+                groups.set(type, group);
+            }
+            group.add(preview);
+        }
+
+        String[][] index = new String[PREVIEW_TYPE_COUNT][];
+        for (int i = 0; i < PREVIEW_TYPE_COUNT; i++) {
+            List<String> group = groups.get(i);
+            if (group == null)
+                continue;
+            Collections.sort(group);
+            index[i] = group.toArray(new String[group.size()]);
+        }
+        return index;
+    }
+
+    /**
+     * @return the preview type of entryName or -1 if it is not a preview of any type
+     */
+    public static int getPreviewType(String entryName) {
+        for (int i = 0; i < sTypePrefixes.length; i++) {
+            if (entryName.contains(sTypePrefixes[i]))
+                return i;
+        }
+        return -1;
+    }
 
-    public static String[] getPreviews(Theme theme, String prefix) {
-        String[] completeList = getAllPreviews(theme);
-        List<String> list = new ArrayList<String>();
-        for (String item : completeList) {
-            if (item.contains(prefix))
-                list.add(item);
+    /**
+     * @return the preview type shown for the given THEME_ELEMENT_TYPE or -1 if it has none
+     */
+    public static int getPreviewTypeForElement(int elementType) {
+        switch (elementType) {
+            case Theme.THEME_ELEMENT_TYPE_ICONS:
+                return PREVIEW_TYPE_ICONS;
+            case Theme.THEME_ELEMENT_TYPE_WALLPAPER:
+                return PREVIEW_TYPE_WALLPAPER;
+            case Theme.THEME_ELEMENT_TYPE_LOCK_WALLPAPER:
+                return PREVIEW_TYPE_LOCK_WALLPAPER;
+            case Theme.THEME_ELEMENT_TYPE_SYSTEMUI:
+                return PREVIEW_TYPE_STATUSBAR;
+            case Theme.THEME_ELEMENT_TYPE_FRAMEWORK:
+                return PREVIEW_TYPE_LAUNCHER;
+            case Theme.THEME_ELEMENT_TYPE_CONTACTS:
+            case Theme.THEME_ELEMENT_TYPE_RINGTONES:
+                return PREVIEW_TYPE_CONTACTS;
+            case Theme.THEME_ELEMENT_TYPE_DIALER:
+                return PREVIEW_TYPE_DIALER;
+            case Theme.THEME_ELEMENT_TYPE_BOOTANIMATION:
+                return PREVIEW_TYPE_BOOTANIMATION;
+            case Theme.THEME_ELEMENT_TYPE_MMS:
+                return PREVIEW_TYPE_MMS;
+            case Theme.THEME_ELEMENT_TYPE_FONT:
+                return PREVIEW_TYPE_FONTS;
+            default:
+                return -1;
         }
-        Collections.sort(list);
-        return list.toArray(new String[0]);
     }
 
-    public static String[] getAllPreviews(Theme theme) {
+    /**
+     * Returns the previews shown on the detail screen of the given THEME_ELEMENT_TYPE
+     */
+    public static String[] getElementPreviews(ThemeSummary theme, int elementType) {
+        int type = getPreviewTypeForElement(elementType);
+        return type >= 0 ? getPreviews(theme, type) : EMPTY;
+    }
+
+    /**
+     * Returns the preview the element grid shows for theme, or null if there is none
+     */
+    public static String getElementPreview(ThemeSummary theme, int elementType) {
+        int type = getPreviewTypeForElement(elementType);
+        if (type < 0)
+            return null;
+        // element grids load the first preview along with the summary
+        if (theme.getPreviewIndex() == null && theme.hasFirstPreview(type))
+            return theme.getFirstPreview(type);
+        String[] previews = getPreviews(theme, type);
+        return previews.length > 0 ? previews[0] : null;
+    }
+
+    public static String[] getAllPreviews(ThemeSummary theme) {
         return theme.getPreviewsList().split("\\|");
     }
 
-    public static String[] getLauncherPreviews(Theme theme) {
-        return getPreviews(theme, PREVIEW_LAUNCHER_PREFIX);
+    /**
+     * Picks the preview the chooser grid shows for a theme
+     * @return the launcher preview if there is one, otherwise the first preview or null
+     */
+    public static String getMainPreview(String[] previews) {
+        String first = null;
+        for (String preview : previews) {
+            if (MAIN_PREVIEW.equals(preview))
+                return preview;
+            if (first == null && preview.length() > 0)
+                first = preview;
+        }
+        return first;
+    }
+
+    public static String[] getLauncherPreviews(ThemeSummary theme) {
+        return getPreviews(theme, PREVIEW_TYPE_LAUNCHER);
     }
 
-    public static String[] getIconPreviews(Theme theme) {
-        return getPreviews(theme, PREVIEW_ICONS_PREFIX);
+    public static String[] getIconPreviews(ThemeSummary theme) {
+        return getPreviews(theme, PREVIEW_TYPE_ICONS);
     }
 
-    public static String[] getStatusbarPreviews(Theme theme) {
-        return getPreviews(theme, PREVIEW_STATUSBAR_PREFIX);
+    public static String[] getStatusbarPreviews(ThemeSummary theme) {
+        return getPreviews(theme, PREVIEW_TYPE_STATUSBAR);
     }
 
-    public static String[] getMmsPreviews(Theme theme) {
-        return getPreviews(theme, PREVIEW_MMS_PREFIX);
+    public static String[] getMmsPreviews(ThemeSummary theme) {
+        return getPreviews(theme, PREVIEW_TYPE_MMS);
     }
 
-    public static String[] getContactsPreviews(Theme theme) {
-        return getPreviews(theme, PREVIEW_CONTACTS_PREFIX);
+    public static String[] getContactsPreviews(ThemeSummary theme) {
+        return getPreviews(theme, PREVIEW_TYPE_CONTACTS);
     }
 
-    public static String[] getDialerPreviews(Theme theme) {
-        return getPreviews(theme, PREVIEW_DIALER_PREFIX);
+    public static String[] getDialerPreviews(ThemeSummary theme) {
+        return getPreviews(theme, PREVIEW_TYPE_DIALER);
     }
 
-    public static String[] getBootanimationPreviews(Theme theme) {
-        return getPreviews(theme, PREVIEW_BOOTANIMATION_PREFIX);
+    public static String[] getBootanimationPreviews(ThemeSummary theme) {
+        return getPreviews(theme, PREVIEW_TYPE_BOOTANIMATION);
     }
 
-    public static String[] getFontsPreviews(Theme theme) {
-        return getPreviews(theme, PREVIEW_FONTS_PREFIX);
+    public static String[] getFontsPreviews(ThemeSummary theme) {
+        return getPreviews(theme, PREVIEW_TYPE_FONTS);
     }
 
-    public static String[] getWallpaperPreviews(Theme theme) {
-        return getPreviews(theme, PREVIEW_WALLPAPER_PREFIX);
+    public static String[] getWallpaperPreviews(ThemeSummary theme) {
+        return getPreviews(theme, PREVIEW_TYPE_WALLPAPER);
     }
 
-    public static String[] getLockWallpaperPreviews(Theme theme) {
-        return getPreviews(theme, PREVIEW_LOCK_WALLPAPER_PREFIX);
+    public static String[] getLockWallpaperPreviews(ThemeSummary theme) {
+        return getPreviews(theme, PREVIEW_TYPE_LOCK_WALLPAPER);
     }
 }
@@ -15,6 +15,7 @@
 
 package com.android.thememanager;
 
+import android.graphics.Bitmap;
 import android.view.View;
 import android.widget.ImageView;
 import android.widget.TextView;
@@ -26,4 +27,14 @@ public class PreviewHolder {
     public View progress;
     public TextView name;
     public int index = 0;
+    // theme currently bound to this cell
+    public ThemeSummary theme;
+    // key of the preview this cell is waiting on, null once loaded or cancelled
+    public volatile String pendingKey;
+    // queued decode for pendingKey, removed from the queue if the cell is recycled
+    public PreviewExecutor.Task pendingTask;
+    // retained bitmap shown by preview, released to the BitmapPool when the cell is recycled
+    public Bitmap bitmap;
+    // retained tiny preview shown until bitmap is loaded, released along with bitmap
+    public Bitmap placeholder;
 }
@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2013 The ChameleonOS Project
+ *
+ * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.thememanager;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Loads grid thumbnails, trying the memory cache, then the disk cache and only then
+ * inflating the preview out of the theme archive.
+ */
+public class PreviewLoader {
+    private static final String TAG = "PreviewLoader";
+
+    // longest side of the tiny placeholder stored with each theme
+    public static final int TINY_PREVIEW_SIZE = 32;
+    private static final int TINY_PREVIEW_QUALITY = 70;
+    // stands in for the entry name in the memory cache key of tiny previews
+    private static final String TINY_PREVIEW_ENTRY = "tiny";
+
+    // loads in progress by cache key, later requests for the same key attach to these
+    private static final Map<String, PendingLoad> sPending = new HashMap<String, PendingLoad>();
+
+    /**
+     * Receives a thumbnail requested with loadThumbnail
+     */
+    public interface Callback {
+        /**
+         * Called on the thread that loaded the thumbnail, with the bitmap retained for this
+         * callback or null if the theme has no such preview
+         */
+        void onThumbnailLoaded(Bitmap bmp);
+    }
+
+    /**
+     * Releases the thumbnail right away, for loads that only fill the caches
+     */
+    public static final Callback RELEASE = new Callback() {
+        @Override
+        public void onThumbnailLoaded(Bitmap bmp) {
+            BitmapPool.getInstance().release(bmp);
+        }
+    };
+
+    /**
+     * A load other callers can attach to while it is in progress
+     */
+    private static final class PendingLoad {
+        // the caller doing the load plus every caller that attached to it
+        final List<Callback> callbacks = new ArrayList<Callback>();
+    }
+
+    /**
+     * Loads the preview entryName of theme scaled to cover width x height and hands it to
+     * callback, which must give it back with BitmapPool.release once it is no longer shown.
+     *
+     * Concurrent requests for the same archive, entry and size share a single load.  A
+     * request that arrives while one is in progress only attaches its callback and returns
+     * at once, so a decode worker never sits waiting on another.
+     */
+    public static void loadThumbnail(ThemeSummary theme, String entryName, int width, int height,
+            Callback callback) {
+        if (theme.isMissing()) {
+            callback.onThumbnailLoaded(null);
+            return;
+        }
+        PreviewCache cache = PreviewCache.getInstance();
+        String key = PreviewCache.key(theme, entryName, width, height);
+        Bitmap bmp = cache.acquire(key);
+        if (bmp != null) {
+            callback.onThumbnailLoaded(bmp);
+            return;
+        }
+
+        PendingLoad pending;
+        synchronized (sPending) {
+            pending = sPending.get(key);
+            if (pending != null) {
+                pending.callbacks.add(callback);
+                return;
+            }
+            // a load may have finished between the cache check above and taking the lock
+            bmp = cache.acquire(key);
+            if (bmp == null) {
+                pending = new PendingLoad();
+                pending.callbacks.add(callback);
+                sPending.put(key, pending);
+            }
+        }
+        if (bmp != null) {
+            callback.onThumbnailLoaded(bmp);
+            return;
+        }
+
+        try {
+            bmp = load(theme, entryName, width, height);
+        } finally {
+            synchronized (sPending) {
+                // one reference for every callback, retained before the cache could evict it
+                for (int i = 0; i < pending.callbacks.size(); i++)
+                    BitmapPool.getInstance().retain(bmp);
+                cache.put(key, bmp);
+                sPending.remove(key);
+            }
+            // nothing attaches once the load is out of sPending
+            for (Callback c : pending.callbacks)
+                c.onThumbnailLoaded(bmp);
+        }
+    }
+
+    private static Bitmap load(ThemeSummary theme, String entryName, int width, int height) {
+        ThumbnailDiskCache diskCache = ThumbnailDiskCache.getInstance();
+        Bitmap bmp = diskCache.get(theme, entryName, width, height);
+        if (bmp == null) {
+            bmp = decodeFromArchive(theme, entryName, width, height);
+            if (bmp == null)
+                return null;
+            bmp = scaleToCover(bmp, width, height);
+            diskCache.put(theme, entryName, width, height, bmp);
+        }
+        return bmp;
+    }
+
+    /**
+     * Returns the decoded tiny preview of theme, retained for the caller, or null if the
+     * theme has none.  Tiny previews are a few hundred bytes so this is cheap enough to
+     * run while binding a cell.
+     */
+    public static Bitmap loadTinyPreview(ThemeSummary theme) {
+        byte[] data = theme.getTinyPreview();
+        if (data == null || data.length == 0)
+            return null;
+        PreviewCache cache = PreviewCache.getInstance();
+        String key = PreviewCache.key(theme, TINY_PREVIEW_ENTRY, TINY_PREVIEW_SIZE,
+                TINY_PREVIEW_SIZE);
+        Bitmap bmp = cache.acquire(key);
+        if (bmp == null) {
+            bmp = BitmapFactory.decodeByteArray(data, 0, data.length);
+            if (bmp != null) {
+                BitmapPool.getInstance().retain(bmp);
+                cache.put(key, bmp);
+            }
+        }
+        return bmp;
+    }
+
+    /**
+     * Renders the image opened by opener down to the tiny preview stored in the database
+     * @return the encoded tiny preview or null if the image could not be decoded
+     */
+    public static byte[] createTinyPreview(BitmapDecoder.StreamOpener opener) throws IOException {
+        Bitmap bmp = BitmapDecoder.decode(opener, TINY_PREVIEW_SIZE, TINY_PREVIEW_SIZE);
+        if (bmp == null)
+            return null;
+        float scale = (float) TINY_PREVIEW_SIZE / Math.max(bmp.getWidth(), bmp.getHeight());
+        Bitmap tiny = bmp;
+        if (scale < 1f) {
+            tiny = Bitmap.createScaledBitmap(bmp, Math.max(1, Math.round(bmp.getWidth() * scale)),
+                    Math.max(1, Math.round(bmp.getHeight() * scale)), true);
+            if (tiny != bmp)
+                BitmapPool.getInstance().put(bmp);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        tiny.compress(tiny.hasAlpha() ? Bitmap.CompressFormat.PNG : Bitmap.CompressFormat.JPEG,
+                TINY_PREVIEW_QUALITY, out);
+        BitmapPool.getInstance().put(tiny);
+        return out.toByteArray();
+    }
+
+    private static Bitmap decodeFromArchive(ThemeSummary theme, String entryName,
+            int width, int height) {
+        ZipFileCache zipCache = ZipFileCache.getInstance();
+        ZipFile zip = null;
+        try {
+            zip = zipCache.acquire(theme.getThemePath());
+            ZipEntry ze = zip.getEntry(entryName);
+            if (ze == null)
+                return null;
+            return BitmapDecoder.decode(BitmapDecoder.fromZipEntry(zip, ze), width, height);
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to decode " + entryName + " from " + theme.getThemePath(), e);
+            return null;
+        } finally {
+            zipCache.release(zip);
+        }
+    }
+
+    /**
+     * Scales bmp down so it just covers width x height, keeping its aspect ratio
+     */
+    private static Bitmap scaleToCover(Bitmap bmp, int width, int height) {
+        if (width <= 0 || height <= 0)
+            return bmp;
+        float scale = Math.max((float) width / bmp.getWidth(), (float) height / bmp.getHeight());
+        if (scale >= 1f)
+            return bmp;
+        Bitmap scaled = Bitmap.createScaledBitmap(bmp, Math.max(1, Math.round(bmp.getWidth() * scale)),
+                Math.max(1, Math.round(bmp.getHeight() * scale)), true);
+        // the full decode was never shown, let the next decode reuse it
+        if (scaled != bmp)
+            BitmapPool.getInstance().put(bmp);
+        return scaled;
+    }
+}
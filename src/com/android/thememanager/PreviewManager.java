@@ -16,109 +16,149 @@
 package com.android.thememanager;
 
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.drawable.BitmapDrawable;
 import android.os.Handler;
 import android.os.Message;
 import android.util.Log;
 import android.view.View;
 
-import java.io.IOException;
-import java.io.InputStream;
-import java.util.WeakHashMap;
-import java.util.Map;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
-
 public class PreviewManager {
     private static final boolean DEBUG = true;
-    private final Map<String, BitmapDrawable> drawableMap;
+    private final PreviewCache mCache = PreviewCache.getInstance();
+    private final int mWidth;
+    private final int mHeight;
 
-    public PreviewManager() {
-        drawableMap = new WeakHashMap<String, BitmapDrawable>();
+    /**
+     * @param width width of the cells previews are decoded for
+     * @param height height of the cells previews are decoded for
+     */
+    public PreviewManager(int width, int height) {
+        mWidth = width;
+        mHeight = height;
     }
 
-    @SuppressWarnings("deprecation")
-    public BitmapDrawable fetchDrawable(Theme theme) {
-        String themeId = theme.getFileName();
-        if (drawableMap.containsKey(themeId)) {
-            return drawableMap.get(themeId);
+    /**
+     * Loads the preview and hands it to callback, which must release it to the BitmapPool
+     */
+    public void fetchBitmap(ThemeSummary theme, PreviewLoader.Callback callback) {
+        String entryName = getPreviewEntry(theme);
+        if (entryName == null) {
+            callback.onThumbnailLoaded(null);
+            return;
         }
-
         if (DEBUG)
-            Log.d(this.getClass().getSimpleName(), "theme ID:" + themeId);
-        try {
-            InputStream is = fetch(theme);
-            BitmapDrawable drawable = null;
-            if (is != null) {
-                BitmapFactory.Options opts = new BitmapFactory.Options();
-                opts.inPreferredConfig = Bitmap.Config.RGB_565;
-                opts.inSampleSize = 2;
-                Bitmap bmp = BitmapFactory.decodeStream(is, null, opts);
-                drawable = new BitmapDrawable(bmp);
-                is.close();
-            }
-
-            if (drawable != null) {
-                drawableMap.put(themeId, drawable);
-                if (DEBUG)
-                    Log.d(this.getClass().getSimpleName(), "got a thumbnail drawable: " + drawable.getBounds() + ", "
-                            + drawable.getIntrinsicHeight() + "," + drawable.getIntrinsicWidth() + ", "
-                            + drawable.getMinimumHeight() + "," + drawable.getMinimumWidth());
-            } else {
-                if (DEBUG)
-                    Log.w(this.getClass().getSimpleName(), "could not get thumbnail");
-            }
-
-            return drawable;
-        } catch (IOException e) {
-            if (DEBUG)
-                Log.e(this.getClass().getSimpleName(), "fetchDrawable failed", e);
-            return null;
-        }
+            Log.d(this.getClass().getSimpleName(), "theme ID:" + theme.getFileName());
+        PreviewLoader.loadThumbnail(theme, entryName, mWidth, mHeight, callback);
     }
 
-    public void fetchDrawableOnThread(final Theme theme, final PreviewHolder holder) {
-        String themeId = theme.getFileName();
-        if (drawableMap.containsKey(themeId)) {
-            holder.preview.setImageDrawable(drawableMap.get(themeId));
+    @SuppressWarnings("deprecation")
+    public void fetchDrawableOnThread(final ThemeSummary theme, final PreviewHolder holder) {
+        String entryName = getPreviewEntry(theme);
+        final String key = entryName != null
+                ? PreviewCache.key(theme, entryName, mWidth, mHeight) : theme.getFileName();
+        holder.pendingKey = key;
+        Bitmap cached = entryName != null ? mCache.acquire(key) : null;
+        if (cached != null) {
+            holder.pendingKey = null;
+            holder.bitmap = cached;
+            holder.preview.setImageDrawable(new BitmapDrawable(cached));
             holder.progress.setVisibility(View.GONE);
             return;
         }
 
+        // the tiny preview came with the summary, show it blurred up until the decode is done
+        Bitmap placeholder = PreviewLoader.loadTinyPreview(theme);
+        if (placeholder != null) {
+            holder.placeholder = placeholder;
+            holder.preview.setImageDrawable(new BitmapDrawable(placeholder));
+            holder.progress.setVisibility(View.GONE);
+        }
+
         final Handler handler = new Handler() {
             @Override
             public void handleMessage(Message message) {
-                long delay = 0;
-                delay = holder.index * 50;
-                if (message.obj != null)
-                    holder.preview.setImageDrawableAnimated((BitmapDrawable) message.obj, delay);
-                else
+                Bitmap bmp = (Bitmap) message.obj;
+                // the cell was recycled or cancelled while decoding
+                if (!key.equals(holder.pendingKey)) {
+                    BitmapPool.getInstance().release(bmp);
+                    return;
+                }
+                holder.pendingKey = null;
+                holder.pendingTask = null;
+                // cells without a placeholder flip in one after another
+                long delay = holder.placeholder == null ? holder.index * 50 : 0;
+                if (bmp != null) {
+                    holder.bitmap = bmp;
+                    holder.preview.setImageDrawableAnimated(new BitmapDrawable(bmp), delay);
+                } else
                     holder.preview.setImageResourceAnimated(R.drawable.no_preview, delay);
                 holder.progress.setVisibility(View.GONE);
             }
         };
 
-        Thread thread = new Thread() {
+        holder.pendingTask = PreviewExecutor.execute(this, PreviewExecutor.PRIORITY_VISIBLE,
+                new Runnable() {
             @Override
             public void run() {
-                //TODO : set imageView to a "pending" image
-                BitmapDrawable drawable = fetchDrawable(theme);
-                Message message = handler.obtainMessage(1, drawable);
-                handler.sendMessage(message);
+                if (!key.equals(holder.pendingKey))
+                    return;
+                fetchBitmap(theme, new PreviewLoader.Callback() {
+                    @Override
+                    public void onThumbnailLoaded(Bitmap bmp) {
+                        if (DEBUG && bmp == null)
+                            Log.w(PreviewManager.class.getSimpleName(), "could not get thumbnail");
+                        Message message = handler.obtainMessage(1, bmp);
+                        handler.sendMessage(message);
+                    }
+                });
             }
-        };
-        thread.start();
+        });
     }
 
-    private InputStream fetch(Theme theme) throws IOException {
-        ZipFile zip = new ZipFile(theme.getThemePath());
-        ZipEntry ze = zip.getEntry("preview/preview_launcher_0.png");
-        if (ze == null) {
-            String[] previewList = PreviewHelper.getAllPreviews(theme);
-            if (previewList.length > 0)
-                ze = zip.getEntry(previewList[0]);
-        }
-        return ze != null ? zip.getInputStream(ze) : null;
+    /**
+     * Drops the pending load for holder, a decode already running is still cached
+     */
+    public void cancel(PreviewHolder holder) {
+        holder.pendingKey = null;
+        if (holder.pendingTask != null)
+            PreviewExecutor.cancel(holder.pendingTask);
+        holder.pendingTask = null;
+    }
+
+    /**
+     * Drops every queued load and prefetch made through this manager
+     */
+    public void cancelAll() {
+        PreviewExecutor.cancelAll(this);
+    }
+
+    /**
+     * Decodes the preview into the cache ahead of a cell being bound to it
+     */
+    public void prefetch(final ThemeSummary theme) {
+        String entryName = getPreviewEntry(theme);
+        if (entryName == null || mCache.contains(PreviewCache.key(theme, entryName, mWidth, mHeight)))
+            return;
+        PreviewExecutor.execute(this, PreviewExecutor.PRIORITY_PREFETCH, new Runnable() {
+            @Override
+            public void run() {
+                fetchBitmap(theme, PreviewLoader.RELEASE);
+            }
+        });
+    }
+
+    /**
+     * Drops any cached preview for the given theme so the next fetch decodes it again
+     */
+    public void invalidate(ThemeSummary theme) {
+        mCache.invalidate(theme.getFileName());
+    }
+
+    private static String getPreviewEntry(ThemeSummary theme) {
+        if (theme.getMainPreview() != null)
+            return theme.getMainPreview();
+        if (theme.getPreviewsList() != null)
+            return PreviewHelper.getMainPreview(PreviewHelper.getAllPreviews(theme));
+        return null;
     }
 }
@@ -22,7 +22,7 @@ import android.view.View;
 import android.widget.CheckBox;
 import android.widget.TextView;
 
-public class Theme {
+public class Theme extends ThemeSummary {
 
     public static final int THEME_ELEMENT_TYPE_ICONS = 0;
     public static final int THEME_ELEMENT_TYPE_SYSTEMUI = 1;
@@ -36,6 +36,23 @@ public class Theme {
     public static final int THEME_ELEMENT_TYPE_BOOTANIMATION = 9;
     public static final int THEME_ELEMENT_TYPE_FONT = 10;
 
+    // Component flags, bit n corresponds to THEME_ELEMENT_TYPE n except for notifications
+    public static final int COMPONENT_ICONS = 1 << THEME_ELEMENT_TYPE_ICONS;
+    public static final int COMPONENT_SYSTEMUI = 1 << THEME_ELEMENT_TYPE_SYSTEMUI;
+    public static final int COMPONENT_FRAMEWORK = 1 << THEME_ELEMENT_TYPE_FRAMEWORK;
+    public static final int COMPONENT_CONTACTS = 1 << THEME_ELEMENT_TYPE_CONTACTS;
+    public static final int COMPONENT_DIALER = 1 << THEME_ELEMENT_TYPE_DIALER;
+    public static final int COMPONENT_MMS = 1 << THEME_ELEMENT_TYPE_MMS;
+    public static final int COMPONENT_WALLPAPER = 1 << THEME_ELEMENT_TYPE_WALLPAPER;
+    public static final int COMPONENT_LOCK_WALLPAPER = 1 << THEME_ELEMENT_TYPE_LOCK_WALLPAPER;
+    public static final int COMPONENT_RINGTONE = 1 << THEME_ELEMENT_TYPE_RINGTONES;
+    public static final int COMPONENT_BOOTANIMATION = 1 << THEME_ELEMENT_TYPE_BOOTANIMATION;
+    public static final int COMPONENT_FONT = 1 << THEME_ELEMENT_TYPE_FONT;
+    public static final int COMPONENT_NOTIFICATION = 1 << 11;
+
+    public static final int COMPONENTS_COMPLETE = COMPONENT_SYSTEMUI | COMPONENT_FRAMEWORK |
+            COMPONENT_MMS | COMPONENT_CONTACTS;
+
     public static int[] sElementIcons = {
             R.drawable.ic_icons,
             R.drawable.ic_systemui,
@@ -62,16 +79,10 @@ public class Theme {
             R.string.mixer_bootanimation_label,
             R.string.mixer_font_label };
 
-    private long id;
-    private String fileName;
-    private String title;
     private String author;
     private String designer;
     private String version;
     private String uiVersion;
-    private String themePath;
-    private boolean isCosTheme;
-    private boolean isDefaultTheme;
     private boolean hasWallpaper;
     private boolean hasLockscreenWallpaper;
     private boolean hasIcons;
@@ -85,32 +96,6 @@ public class Theme {
     private boolean hasMms;
     private boolean hasFont;
     private boolean isComplete;
-    private long lastModified;
-    private String previewsList;
-
-    public long getId() {
-        return id;
-    }
-
-    public void setId(long id) {
-        this.id = id;
-    }
-
-    public String getFileName() {
-        return fileName;
-    }
-
-    public void setFileName(String fileName) {
-        this.fileName = fileName;
-    }
-
-    public String getTitle() {
-        return title;
-    }
-
-    public void setTitle(String title) {
-        this.title = title;
-    }
 
     public String getAuthor() {
         return author;
@@ -144,30 +129,6 @@ public class Theme {
         this.uiVersion = uiVersion;
     }
 
-    public String getThemePath() {
-        return themePath;
-    }
-
-    public void setThemePath(String themePath) {
-        this.themePath = themePath;
-    }
-
-    public boolean getIsCosTheme() {
-        return isCosTheme;
-    }
-
-    public void setIsCosTheme(boolean isCosTheme) {
-        this.isCosTheme = isCosTheme;
-    }
-
-    public boolean getIsDefaultTheme() {
-        return isDefaultTheme;
-    }
-
-    public void setIsDefaultTheme(boolean isDefaultTheme) {
-        this.isDefaultTheme = isDefaultTheme;
-    }
-
     public boolean getHasWallpaper() {
         return hasWallpaper;
     }
@@ -272,20 +233,59 @@ public class Theme {
         this.isComplete = isComplete;
     }
 
-    public long getLastModified() {
-        return lastModified;
-    }
-
-    public void setLastModified(long lastModified) {
-        this.lastModified = lastModified;
-    }
-
-    public String getPreviewsList() {
-        return previewsList;
-    }
-
-    public void setPreviewsList(String previewsList) {
-        this.previewsList = previewsList;
+    /**
+     * @return the COMPONENT_* flags that make up the given THEME_ELEMENT_TYPE
+     */
+    public static int getComponentsForElement(int elementType) {
+        if (elementType == THEME_ELEMENT_TYPE_RINGTONES)
+            return COMPONENT_RINGTONE | COMPONENT_NOTIFICATION;
+        return 1 << elementType;
+    }
+
+    /**
+     * @return the THEME_ELEMENT_TYPE of the mixer following elementType, the one users
+     * are most likely to open next
+     */
+    public static int getNextElement(int elementType) {
+        return (elementType + 1) % sElementLabels.length;
+    }
+
+    /**
+     * @return the has* flags of this theme packed into COMPONENT_* bits
+     */
+    public int getComponents() {
+        int components = 0;
+        if (hasIcons) components |= COMPONENT_ICONS;
+        if (hasSystemUI) components |= COMPONENT_SYSTEMUI;
+        if (hasFramework) components |= COMPONENT_FRAMEWORK;
+        if (hasContacts) components |= COMPONENT_CONTACTS;
+        if (hasDialer) components |= COMPONENT_DIALER;
+        if (hasMms) components |= COMPONENT_MMS;
+        if (hasWallpaper) components |= COMPONENT_WALLPAPER;
+        if (hasLockscreenWallpaper) components |= COMPONENT_LOCK_WALLPAPER;
+        if (hasRingtone) components |= COMPONENT_RINGTONE;
+        if (hasBootanimation) components |= COMPONENT_BOOTANIMATION;
+        if (hasFont) components |= COMPONENT_FONT;
+        if (hasNotification) components |= COMPONENT_NOTIFICATION;
+        return components;
+    }
+
+    /**
+     * Sets all of the has* flags from a COMPONENT_* bitmask
+     */
+    public void setComponents(int components) {
+        hasIcons = (components & COMPONENT_ICONS) != 0;
+        hasSystemUI = (components & COMPONENT_SYSTEMUI) != 0;
+        hasFramework = (components & COMPONENT_FRAMEWORK) != 0;
+        hasContacts = (components & COMPONENT_CONTACTS) != 0;
+        hasDialer = (components & COMPONENT_DIALER) != 0;
+        hasMms = (components & COMPONENT_MMS) != 0;
+        hasWallpaper = (components & COMPONENT_WALLPAPER) != 0;
+        hasLockscreenWallpaper = (components & COMPONENT_LOCK_WALLPAPER) != 0;
+        hasRingtone = (components & COMPONENT_RINGTONE) != 0;
+        hasBootanimation = (components & COMPONENT_BOOTANIMATION) != 0;
+        hasFont = (components & COMPONENT_FONT) != 0;
+        hasNotification = (components & COMPONENT_NOTIFICATION) != 0;
     }
 
     public static void showThemeDetails(Context context, Theme theme) {
@@ -0,0 +1,408 @@
+/*
+ * Copyright (C) 2013 The ChameleonOS Project
+ *
+ * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.thememanager;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * Reads the central directory of a theme archive in a single pass and collects
+ * everything the indexer needs: which components the theme provides, the list of
+ * preview images and the location, size and CRC of every entry.
+ */
+public class ThemeArchiveProbe {
+    private static final int EOCD_SIGNATURE = 0x06054b50;
+    private static final int CDFH_SIGNATURE = 0x02014b50;
+    private static final int LFH_SIGNATURE = 0x04034b50;
+    private static final int EOCD_SIZE = 22;
+    private static final int CDFH_SIZE = 46;
+    private static final int LFH_SIZE = 30;
+    private static final int MAX_COMMENT_SIZE = 0xffff;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    public static final String DESCRIPTION_ENTRY = "description.xml";
+
+    private static final String WALLPAPER_JPG = "wallpaper/default_wallpaper.jpg";
+    private static final String WALLPAPER_PNG = "wallpaper/default_wallpaper.png";
+    private static final String LOCK_WALLPAPER_JPG = "wallpaper/default_lock_wallpaper.jpg";
+    private static final String LOCK_WALLPAPER_PNG = "wallpaper/default_lock_wallpaper.png";
+
+    private final String mPath;
+    private final Map<String, EntryInfo> mEntries = new HashMap<String, EntryInfo>();
+    private final List<String> mPreviews = new ArrayList<String>();
+    private int mComponents;
+    private String mWallpaper;
+    private String mLockWallpaper;
+
+    public static class EntryInfo {
+        public final String name;
+        public final int method;
+        public final long crc;
+        public final long compressedSize;
+        public final long size;
+        public final long localHeaderOffset;
+
+        EntryInfo(String name, int method, long crc, long compressedSize, long size,
+                long localHeaderOffset) {
+            this.name = name;
+            this.method = method;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.localHeaderOffset = localHeaderOffset;
+        }
+
+        public boolean isDirectory() {
+            return name.endsWith("/");
+        }
+    }
+
+    private ThemeArchiveProbe(String path) {
+        mPath = path;
+    }
+
+    /**
+     * Probes the archive at path
+     * @throws IOException if the file can not be read or is not a valid zip archive
+     */
+    public static ThemeArchiveProbe probe(String path) throws IOException {
+        ThemeArchiveProbe probe = new ThemeArchiveProbe(path);
+        RandomAccessFile raf = new RandomAccessFile(path, "r");
+        try {
+            probe.readCentralDirectory(raf, 0, raf.length(), true);
+        } finally {
+            raf.close();
+        }
+        return probe;
+    }
+
+    /**
+     * Probes an archive stored uncompressed inside the archive at path, such as a
+     * theme's boots/bootanimation.zip, without extracting it.  Entries opened from the
+     * returned probe are read straight out of the outer file.
+     * @return the probe or null if there is no such entry or it is compressed
+     */
+    public static ThemeArchiveProbe probeNested(String path, String entryName)
+            throws IOException {
+        EntryInfo entry = probe(path).getEntry(entryName);
+        if (entry == null || entry.method != ZipEntry.STORED)
+            return null;
+        ThemeArchiveProbe probe = new ThemeArchiveProbe(path);
+        RandomAccessFile raf = new RandomAccessFile(path, "r");
+        try {
+            long base = getDataOffset(raf, entry);
+            if (base + entry.size > raf.length())
+                throw new ZipException("Nested archive out of range: " + entryName);
+            probe.readCentralDirectory(raf, base, entry.size, false);
+        } finally {
+            raf.close();
+        }
+        return probe;
+    }
+
+    public String getPath() {
+        return mPath;
+    }
+
+    /**
+     * @return bitmask of Theme.COMPONENT_* flags found in the archive
+     */
+    public int getComponents() {
+        return mComponents;
+    }
+
+    /**
+     * @return preview entries in central directory order, followed by the wallpapers
+     */
+    public List<String> getPreviews() {
+        List<String> previews = new ArrayList<String>(mPreviews);
+        if (mWallpaper != null)
+            previews.add(mWallpaper);
+        if (mLockWallpaper != null)
+            previews.add(mLockWallpaper);
+        return previews;
+    }
+
+    public EntryInfo getEntry(String name) {
+        return mEntries.get(name);
+    }
+
+    public Collection<EntryInfo> getEntries() {
+        return Collections.unmodifiableCollection(mEntries.values());
+    }
+
+    public EntryInfo getDescriptionEntry() {
+        return mEntries.get(DESCRIPTION_ENTRY);
+    }
+
+    /**
+     * Returns the offset of the first byte of description.xml's data in the archive
+     * or -1 if there is no description
+     */
+    public long getDescriptionOffset() throws IOException {
+        EntryInfo entry = getDescriptionEntry();
+        if (entry == null)
+            return -1;
+        RandomAccessFile raf = new RandomAccessFile(mPath, "r");
+        try {
+            return getDataOffset(raf, entry);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Opens the data of entry directly from the archive without building a ZipFile
+     */
+    public InputStream openEntry(EntryInfo entry) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(mPath, "r");
+        try {
+            long offset = getDataOffset(raf, entry);
+            InputStream in = new BoundedInputStream(raf, offset, entry.compressedSize);
+            if (entry.method == ZipEntry.STORED)
+                return in;
+            if (entry.method == ZipEntry.DEFLATED)
+                return new EntryInflaterInputStream(in);
+            raf.close();
+            throw new ZipException("Unsupported compression method " + entry.method);
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    static long getDataOffset(RandomAccessFile raf, EntryInfo entry) throws IOException {
+        byte[] header = new byte[LFH_SIZE];
+        raf.seek(entry.localHeaderOffset);
+        raf.readFully(header);
+        if (readInt(header, 0) != LFH_SIGNATURE)
+            throw new ZipException("Bad local header for " + entry.name);
+        int nameLength = readShort(header, 26);
+        int extraLength = readShort(header, 28);
+        return entry.localHeaderOffset + LFH_SIZE + nameLength + extraLength;
+    }
+
+    /**
+     * Reads the central directory of the archive occupying length bytes at base.  Local
+     * header offsets are stored relative to the start of the file.
+     */
+    private void readCentralDirectory(RandomAccessFile raf, long base, long length,
+            boolean classify) throws IOException {
+        if (length < EOCD_SIZE)
+            throw new ZipException("File too short to be a zip file: " + length);
+
+        // the end of central directory record sits at the end, possibly followed by a comment
+        int scanSize = (int) Math.min(length, EOCD_SIZE + MAX_COMMENT_SIZE);
+        byte[] tail = new byte[scanSize];
+        raf.seek(base + length - scanSize);
+        raf.readFully(tail);
+        int eocd = -1;
+        for (int i = scanSize - EOCD_SIZE; i >= 0; i--) {
+            if (readInt(tail, i) == EOCD_SIGNATURE) {
+                eocd = i;
+                break;
+            }
+        }
+        if (eocd < 0)
+            throw new ZipException("End of central directory not found");
+
+        int entryCount = readShort(tail, eocd + 10);
+        long cdSize = readUInt(tail, eocd + 12);
+        long cdOffset = readUInt(tail, eocd + 16);
+        if (cdOffset + cdSize > length)
+            throw new ZipException("Central directory out of range");
+
+        byte[] cd = new byte[(int) cdSize];
+        raf.seek(base + cdOffset);
+        raf.readFully(cd);
+
+        int pos = 0;
+        for (int i = 0; i < entryCount; i++) {
+            if (pos + CDFH_SIZE > cd.length || readInt(cd, pos) != CDFH_SIGNATURE)
+                throw new ZipException("Bad central directory entry " + i);
+            int method = readShort(cd, pos + 10);
+            long crc = readUInt(cd, pos + 16);
+            long compressedSize = readUInt(cd, pos + 20);
+            long size = readUInt(cd, pos + 24);
+            int nameLength = readShort(cd, pos + 28);
+            int extraLength = readShort(cd, pos + 30);
+            int commentLength = readShort(cd, pos + 32);
+            long localHeaderOffset = readUInt(cd, pos + 42);
+            String name = new String(cd, pos + CDFH_SIZE, nameLength, UTF_8);
+            pos += CDFH_SIZE + nameLength + extraLength + commentLength;
+
+            EntryInfo entry = new EntryInfo(name, method, crc, compressedSize, size,
+                    base + localHeaderOffset);
+            mEntries.put(name, entry);
+            if (classify)
+                classify(name);
+        }
+    }
+
+    private void classify(String name) {
+        if (name.contains(PreviewHelper.PREVIEW_PREFIX)) {
+            mPreviews.add(name);
+        } else if (WALLPAPER_JPG.equals(name) ||
+                (WALLPAPER_PNG.equals(name) && mWallpaper == null)) {
+            mWallpaper = name;
+            mComponents |= Theme.COMPONENT_WALLPAPER;
+        } else if (LOCK_WALLPAPER_JPG.equals(name) ||
+                (LOCK_WALLPAPER_PNG.equals(name) && mLockWallpaper == null)) {
+            mLockWallpaper = name;
+            mComponents |= Theme.COMPONENT_LOCK_WALLPAPER;
+        } else if ("ringtones/ringtone.mp3".equals(name)) {
+            mComponents |= Theme.COMPONENT_RINGTONE;
+        } else if ("ringtones/notification.mp3".equals(name)) {
+            mComponents |= Theme.COMPONENT_NOTIFICATION;
+        } else if (isComponent(name, "icons")) {
+            mComponents |= Theme.COMPONENT_ICONS;
+        } else if (isComponent(name, "com.android.contacts")) {
+            mComponents |= Theme.COMPONENT_CONTACTS;
+        } else if (isComponent(name, "com.android.dialer")) {
+            mComponents |= Theme.COMPONENT_DIALER;
+        } else if (isComponent(name, "com.android.systemui")) {
+            mComponents |= Theme.COMPONENT_SYSTEMUI;
+        } else if (isComponent(name, "framework-res")) {
+            mComponents |= Theme.COMPONENT_FRAMEWORK;
+        } else if (isComponent(name, "boots")) {
+            mComponents |= Theme.COMPONENT_BOOTANIMATION;
+        } else if (isComponent(name, "com.android.mms")) {
+            mComponents |= Theme.COMPONENT_MMS;
+        } else if (isComponent(name, "fonts")) {
+            mComponents |= Theme.COMPONENT_FONT;
+        }
+    }
+
+    /**
+     * A component is either a single entry (icons, framework-res, ...) or a directory
+     */
+    private static boolean isComponent(String name, String component) {
+        return name.startsWith(component) && (name.length() == component.length() ||
+                name.charAt(component.length()) == '/');
+    }
+
+    private static int readShort(byte[] b, int off) {
+        return (b[off] & 0xff) | ((b[off + 1] & 0xff) << 8);
+    }
+
+    private static int readInt(byte[] b, int off) {
+        return (b[off] & 0xff) | ((b[off + 1] & 0xff) << 8) |
+                ((b[off + 2] & 0xff) << 16) | ((b[off + 3] & 0xff) << 24);
+    }
+
+    private static long readUInt(byte[] b, int off) {
+        return readInt(b, off) & 0xffffffffL;
+    }
+
+    /**
+     * Reads at most length bytes starting at offset and closes the file when done
+     */
+    static class BoundedInputStream extends InputStream {
+        private final RandomAccessFile mFile;
+        private long mPosition;
+        private long mRemaining;
+
+        BoundedInputStream(RandomAccessFile file, long offset, long length) {
+            mFile = file;
+            mPosition = offset;
+            mRemaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (mRemaining <= 0)
+                return -1;
+            if (len > mRemaining)
+                len = (int) mRemaining;
+            mFile.seek(mPosition);
+            int count = mFile.read(b, off, len);
+            if (count > 0) {
+                mPosition += count;
+                mRemaining -= count;
+            }
+            return count;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            if (n > mRemaining)
+                n = mRemaining;
+            mPosition += n;
+            mRemaining -= n;
+            return n;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(mRemaining, Integer.MAX_VALUE);
+        }
+
+        @Override
+        public void close() throws IOException {
+            mFile.close();
+        }
+    }
+
+    /**
+     * Raw deflate streams may need one extra byte of input before the inflater reports
+     * that it is finished, the same trick ZipFile uses internally.
+     */
+    static class EntryInflaterInputStream extends InflaterInputStream {
+        private boolean mEof = false;
+
+        EntryInflaterInputStream(InputStream in) {
+            super(in, new Inflater(true), 8192);
+        }
+
+        @Override
+        protected void fill() throws IOException {
+            if (mEof)
+                throw new EOFException("Unexpected end of ZLIB input stream");
+            len = in.read(buf, 0, buf.length);
+            if (len == -1) {
+                buf[0] = 0;
+                len = 1;
+                mEof = true;
+            }
+            inf.setInput(buf, 0, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            super.close();
+            inf.end();
+        }
+    }
+}
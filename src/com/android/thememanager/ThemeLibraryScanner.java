@@ -0,0 +1,444 @@
+/*
+ * Copyright (C) 2013 The ChameleonOS Project
+ *
+ * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.thememanager;
+
+import android.content.Context;
+import android.content.Intent;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps a snapshot of (file name, size, last modified) for every installed theme and
+ * only re-parses archives that were added or changed since the last scan.
+ */
+public class ThemeLibraryScanner {
+    private static final String TAG = "ThemeLibraryScanner";
+    private static final String SNAPSHOT_FILE = "theme_library.snapshot";
+    private static final int SNAPSHOT_VERSION = 1;
+    private static final String DEFAULT_THEME_ID = "default";
+    private static final int MAX_INDEX_THREADS = 8;
+    private static final int WRITE_BATCH_SIZE = 32;
+
+    private static final ThreadFactory sIndexThreadFactory = new ThreadFactory() {
+        private final AtomicInteger mCount = new AtomicInteger(1);
+
+        @Override
+        public Thread newThread(final Runnable r) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, "ThemeIndexer #" + mCount.getAndIncrement());
+        }
+    };
+
+    private Context mContext;
+    private String mThemesPath;
+
+    public interface OnLibraryChangedListener {
+        public void onLibraryChanged(LibraryChange change);
+    }
+
+    public static class LibraryChange {
+        public static final int TYPE_ADDED = 0;
+        public static final int TYPE_CHANGED = 1;
+        public static final int TYPE_REMOVED = 2;
+
+        public final int type;
+        public final String fileName;
+        public final Theme theme;
+
+        public LibraryChange(int type, String fileName, Theme theme) {
+            this.type = type;
+            this.fileName = fileName;
+            this.theme = theme;
+        }
+    }
+
+    private static class IndexJob {
+        public final String themeId;
+        public final SnapshotEntry entry;
+        public final boolean isNew;
+        // set instead of entry for jobs that only render the tiny preview of an indexed theme
+        public final ThemeSummary backfill;
+        public volatile Theme theme;
+
+        public IndexJob(String themeId, SnapshotEntry entry, boolean isNew) {
+            this.themeId = themeId;
+            this.entry = entry;
+            this.isNew = isNew;
+            this.backfill = null;
+        }
+
+        public IndexJob(ThemeSummary backfill) {
+            this.themeId = null;
+            this.entry = null;
+            this.isNew = false;
+            this.backfill = backfill;
+        }
+
+        public String getPath() {
+            return backfill != null ? backfill.getThemePath() : entry.path;
+        }
+    }
+
+    private static class SnapshotEntry {
+        public String path;
+        public long size;
+        public long lastModified;
+
+        public SnapshotEntry(String path, long size, long lastModified) {
+            this.path = path;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+
+        public boolean matches(SnapshotEntry other) {
+            return path.equals(other.path) && size == other.size &&
+                    lastModified == other.lastModified;
+        }
+    }
+
+    public ThemeLibraryScanner(Context context, String themesPath) {
+        mContext = context.getApplicationContext();
+        mThemesPath = themesPath;
+    }
+
+    /**
+     * Diffs the theme directory against the stored snapshot, updates the database for
+     * every added, changed or removed theme and reports each change to listener.  If
+     * anything changed Globals.ACTION_THEME_LIBRARY_CHANGED is broadcast once at the end.
+     * Archives are parsed in parallel on a bounded worker pool, along with the tiny previews
+     * of themes indexed before those were stored, while this thread acts as the single
+     * database writer, committing the results in batched transactions.
+     * This does disk and database work so it must not be called from the UI thread.
+     * @return true if the snapshot was updated successfully
+     */
+    public boolean scan(final OnLibraryChangedListener listener) {
+        // screens other than the caller's hear about changes through a single broadcast
+        final boolean[] changed = new boolean[1];
+        OnLibraryChangedListener notifier = new OnLibraryChangedListener() {
+            @Override
+            public void onLibraryChanged(LibraryChange change) {
+                changed[0] = true;
+                if (listener != null)
+                    listener.onLibraryChanged(change);
+            }
+        };
+        try {
+            return scanLibrary(notifier);
+        } finally {
+            if (changed[0]) {
+                Intent intent = new Intent(Globals.ACTION_THEME_LIBRARY_CHANGED);
+                intent.setPackage(mContext.getPackageName());
+                mContext.sendBroadcast(intent);
+            }
+        }
+    }
+
+    private boolean scanLibrary(OnLibraryChangedListener listener) {
+        Map<String, SnapshotEntry> previous = loadSnapshot();
+        Map<String, SnapshotEntry> current = listThemes();
+        Map<String, SnapshotEntry> next = new HashMap<String, SnapshotEntry>();
+        List<IndexJob> jobs = new ArrayList<IndexJob>();
+
+        ThemesDataSource dataSource = new ThemesDataSource(mContext);
+        dataSource.open();
+        try {
+            for (Map.Entry<String, SnapshotEntry> entry : current.entrySet()) {
+                String themeId = entry.getKey();
+                SnapshotEntry now = entry.getValue();
+                SnapshotEntry then = previous.get(themeId);
+                if (then != null && then.matches(now)) {
+                    next.put(themeId, now);
+                    continue;
+                }
+
+                // an entry without a size comes from a database seeded snapshot so the normal
+                // last modified check decides whether the archive needs to be parsed again
+                boolean force = then != null && then.size >= 0;
+                if (!force && dataSource.entryExists(themeId) &&
+                        !dataSource.entryIsOlder(themeId, now.lastModified)) {
+                    next.put(themeId, now);
+                    continue;
+                }
+                jobs.add(new IndexJob(themeId, now, then == null));
+            }
+
+            // themes parsed again above get their tiny preview along with everything else
+            Set<String> parsed = new HashSet<String>();
+            for (IndexJob job : jobs)
+                parsed.add(job.entry.path);
+            for (ThemeSummary theme : dataSource.getThemesWithoutTinyPreview()) {
+                if (!parsed.contains(theme.getThemePath()))
+                    jobs.add(new IndexJob(theme));
+            }
+
+            indexThemes(jobs, dataSource, next, listener);
+
+            // a theme that failed to parse again is missing from the snapshot but still has
+            // its row, so the database decides what is left to remove as well
+            Set<String> removed = new HashSet<String>(previous.keySet());
+            removed.addAll(dataSource.getThemeFileNames());
+            removed.removeAll(current.keySet());
+            for (String themeId : removed) {
+
+                Theme theme = dataSource.getThemeByFileName(themeId);
+                if (theme != null)
+                    dataSource.deleteTheme(theme);
+                ThemeUtils.deleteThemeCacheDir(themeId);
+                if (listener != null)
+                    listener.onLibraryChanged(
+                            new LibraryChange(LibraryChange.TYPE_REMOVED, themeId, theme));
+            }
+        } finally {
+            dataSource.close();
+        }
+
+        return saveSnapshot(next);
+    }
+
+    private void indexThemes(List<IndexJob> jobs, ThemesDataSource dataSource,
+            Map<String, SnapshotEntry> snapshot, OnLibraryChangedListener listener) {
+        if (jobs.size() == 0)
+            return;
+
+        final BlockingQueue<IndexJob> results = new LinkedBlockingQueue<IndexJob>();
+        int workers = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(),
+                Math.min(MAX_INDEX_THREADS, jobs.size())));
+        ExecutorService pool = Executors.newFixedThreadPool(workers, sIndexThreadFactory);
+        for (final IndexJob job : jobs) {
+            pool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (job.backfill != null) {
+                            job.backfill.setTinyPreview(ThemeUtils.createTinyPreview(
+                                    job.backfill.getThemePath(), job.backfill.getMainPreview()));
+                        } else {
+                            job.theme = ThemeUtils.createThemeFromArchive(job.themeId,
+                                    job.entry.path, DEFAULT_THEME_ID.equals(job.themeId));
+                        }
+                    } catch (RuntimeException e) {
+                        Log.e(TAG, "Failed parsing " + job.getPath(), e);
+                    } finally {
+                        // the writer counts results so every job has to report back
+                        results.add(job);
+                    }
+                }
+            });
+        }
+        pool.shutdown();
+
+        List<IndexJob> batch = new ArrayList<IndexJob>(WRITE_BATCH_SIZE);
+        List<Theme> themes = new ArrayList<Theme>(WRITE_BATCH_SIZE);
+        List<ThemeSummary> tinyPreviews = new ArrayList<ThemeSummary>(WRITE_BATCH_SIZE);
+        int remaining = jobs.size();
+        try {
+            while (remaining > 0) {
+                batch.clear();
+                themes.clear();
+                tinyPreviews.clear();
+                // block for the first result then take whatever else is already parsed
+                batch.add(results.take());
+                results.drainTo(batch, WRITE_BATCH_SIZE - 1);
+                remaining -= batch.size();
+
+                for (IndexJob job : batch) {
+                    if (job.backfill != null) {
+                        // left null when rendering failed, the next scan tries again
+                        if (job.backfill.getTinyPreview() != null)
+                            tinyPreviews.add(job.backfill);
+                    } else if (job.theme != null) {
+                        themes.add(job.theme);
+                    } else {
+                        Log.w(TAG, "Unable to index " + job.entry.path);
+                    }
+                }
+                try {
+                    dataSource.setTinyPreviews(tinyPreviews);
+                } catch (Exception e) {
+                    Log.e(TAG, "Unable to store tiny previews", e);
+                }
+                try {
+                    dataSource.upsertThemes(themes);
+                } catch (Exception e) {
+                    Log.e(TAG, "Unable to store themes", e);
+                    continue;
+                }
+
+                for (IndexJob job : batch) {
+                    if (job.backfill != null || job.theme == null)
+                        continue;
+                    snapshot.put(job.themeId, job.entry);
+                    // cached thumbnails belong to the archive that was replaced
+                    if (!job.isNew)
+                        ThemeUtils.deleteThemeCacheDir(job.themeId);
+                    if (listener != null)
+                        listener.onLibraryChanged(new LibraryChange(job.isNew ?
+                                LibraryChange.TYPE_ADDED : LibraryChange.TYPE_CHANGED,
+                                job.themeId, job.theme));
+                }
+            }
+        } catch (InterruptedException e) {
+            pool.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Forgets the stored snapshot so the next scan checks every archive again
+     */
+    public void invalidate() {
+        mContext.getFileStreamPath(SNAPSHOT_FILE).delete();
+    }
+
+    private Map<String, SnapshotEntry> listThemes() {
+        Map<String, SnapshotEntry> themes = new HashMap<String, SnapshotEntry>();
+
+        File defaultTheme = new File(Globals.DEFAULT_SYSTEM_THEME);
+        if (defaultTheme.exists())
+            themes.put(DEFAULT_THEME_ID, new SnapshotEntry(defaultTheme.getAbsolutePath(),
+                    defaultTheme.length(), defaultTheme.lastModified()));
+
+        File dir = new File(mThemesPath);
+        if (!dir.exists() || !dir.isDirectory()) {
+            Log.e(TAG, mThemesPath + " does not exist or is not a directory!");
+            return themes;
+        }
+
+        File[] files = dir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File file, String s) {
+                String name = s.toLowerCase();
+                return name.endsWith(".ctz") || name.endsWith(".mtz");
+            }
+        });
+        if (files == null)
+            return themes;
+
+        for (File f : files) {
+            themes.put(FileUtils.stripExtension(f.getName()),
+                    new SnapshotEntry(mThemesPath + "/" + f.getName(), f.length(), f.lastModified()));
+        }
+        return themes;
+    }
+
+    private Map<String, SnapshotEntry> loadSnapshot() {
+        Map<String, SnapshotEntry> snapshot = new HashMap<String, SnapshotEntry>();
+        File file = mContext.getFileStreamPath(SNAPSHOT_FILE);
+        if (!file.exists())
+            return seedSnapshotFromDb();
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != SNAPSHOT_VERSION)
+                return seedSnapshotFromDb();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String themeId = in.readUTF();
+                String path = in.readUTF();
+                long size = in.readLong();
+                long lastModified = in.readLong();
+                snapshot.put(themeId, new SnapshotEntry(path, size, lastModified));
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to read snapshot, rebuilding it", e);
+            return seedSnapshotFromDb();
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+        return snapshot;
+    }
+
+    /**
+     * Builds a snapshot from what is already in the database so that the first scan after
+     * an update does not report every theme as new and still notices deleted archives.
+     */
+    private Map<String, SnapshotEntry> seedSnapshotFromDb() {
+        Map<String, SnapshotEntry> snapshot = new HashMap<String, SnapshotEntry>();
+        ThemesDataSource dataSource = new ThemesDataSource(mContext);
+        dataSource.open();
+        List<Theme> themes = dataSource.getAllThemes();
+        dataSource.close();
+        for (Theme theme : themes) {
+            snapshot.put(theme.getFileName(),
+                    new SnapshotEntry(theme.getThemePath(), -1, theme.getLastModified()));
+        }
+        return snapshot;
+    }
+
+    private boolean saveSnapshot(Map<String, SnapshotEntry> snapshot) {
+        File file = mContext.getFileStreamPath(SNAPSHOT_FILE);
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeInt(SNAPSHOT_VERSION);
+            out.writeInt(snapshot.size());
+            for (Map.Entry<String, SnapshotEntry> entry : snapshot.entrySet()) {
+                SnapshotEntry se = entry.getValue();
+                out.writeUTF(entry.getKey());
+                out.writeUTF(se.path);
+                out.writeLong(se.size);
+                out.writeLong(se.lastModified);
+            }
+            out.close();
+            out = null;
+            return tmp.renameTo(file);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to write snapshot", e);
+            return false;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2013 The ChameleonOS Project
+ *
+ * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.thememanager;
+
+import android.content.Context;
+import android.util.DisplayMetrics;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.AbsListView;
+import android.widget.BaseAdapter;
+import android.widget.FrameLayout;
+import android.widget.GridView;
+import android.widget.ImageView;
+import android.widget.LinearLayout;
+import android.widget.TextView;
+
+import com.android.thememanager.widget.FlipImageView;
+
+import java.util.List;
+
+/**
+ * Grid adapter shared by the theme and element choosers.  Cells are recycled through
+ * convertView and a preview is only requested when a cell is bound, so the cost of the
+ * grid follows the number of visible cells rather than the size of the library.
+ * Loads for cells that scroll out of view are cancelled and their bitmaps go back to the
+ * BitmapPool.
+ */
+public abstract class ThemePreviewAdapter extends BaseAdapter
+        implements AbsListView.RecyclerListener, AbsListView.OnScrollListener {
+    // rows past the last visible one whose previews are loaded once scrolling stops
+    private static final int PREFETCH_ROWS = 1;
+    // caps the staggered flip in delay of newly bound cells
+    private static final int MAX_ANIMATION_SLOT = 12;
+
+    protected Context mContext;
+    private GridView mGridView;
+    private List<? extends ThemeSummary> mThemes;
+    private LayoutInflater mInflater;
+    private int mNumColumns;
+    private int mPreviewWidth;
+    private int mPreviewHeight;
+
+    public ThemePreviewAdapter(Context context, GridView gridView, List<? extends ThemeSummary> themes) {
+        mContext = context;
+        mGridView = gridView;
+        mThemes = themes;
+        mInflater = (LayoutInflater) context.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
+
+        mNumColumns = context.getResources().getInteger(R.integer.gridviewNumColumns);
+        int spacingTotal = gridView.getHorizontalSpacing() * (mNumColumns - 1);
+        DisplayMetrics dm = context.getResources().getDisplayMetrics();
+        float aspectRatio = 1;
+        if (dm.heightPixels > dm.widthPixels)
+            aspectRatio = (float)dm.heightPixels / dm.widthPixels;
+        else
+            aspectRatio = (float)dm.widthPixels / dm.heightPixels;
+
+        mPreviewWidth = dm.widthPixels / mNumColumns - spacingTotal;
+        mPreviewHeight = (int)(mPreviewWidth * aspectRatio);
+
+        gridView.setRecyclerListener(this);
+        gridView.setOnScrollListener(this);
+    }
+
+    /**
+     * Starts loading the preview for theme into holder
+     */
+    protected abstract void loadPreview(ThemeSummary theme, PreviewHolder holder);
+
+    /**
+     * Stops any load still pending for holder
+     */
+    protected abstract void cancelPreview(PreviewHolder holder);
+
+    /**
+     * Loads the preview for a cell that is about to scroll into view
+     */
+    protected abstract void prefetchPreview(ThemeSummary theme);
+
+    /**
+     * Called once for every newly inflated cell
+     */
+    protected void onCreateHolder(PreviewHolder holder) {
+    }
+
+    public int getPreviewWidth() {
+        return mPreviewWidth;
+    }
+
+    public int getPreviewHeight() {
+        return mPreviewHeight;
+    }
+
+    public void setThemes(List<? extends ThemeSummary> themes) {
+        mThemes = themes;
+        notifyDataSetChanged();
+    }
+
+    public int getCount() {
+        return mThemes != null ? mThemes.size() : 0;
+    }
+
+    public ThemeSummary getItem(int position) {
+        return mThemes.get(position);
+    }
+
+    public long getItemId(int position) {
+        return position;
+    }
+
+    public View getView(int position, View convertView, ViewGroup parent) {
+        PreviewHolder holder;
+        if (convertView == null) {
+            convertView = mInflater.inflate(R.layout.theme_preview, parent, false);
+            FrameLayout fl = (FrameLayout)convertView.findViewById(R.id.preview_layout);
+            LinearLayout.LayoutParams params = (LinearLayout.LayoutParams)fl.getLayoutParams();
+            params.width = mPreviewWidth;
+            params.height = mPreviewHeight;
+            fl.setLayoutParams(params);
+            holder = new PreviewHolder();
+            holder.preview = (FlipImageView) convertView.findViewById(R.id.preview_image);
+            holder.name = (TextView) convertView.findViewById(R.id.theme_name);
+            holder.osTag = (ImageView) convertView.findViewById(R.id.os_indicator);
+            holder.progress = convertView.findViewById(R.id.loading_indicator);
+            convertView.setTag(holder);
+            onCreateHolder(holder);
+        } else {
+            holder = (PreviewHolder) convertView.getTag();
+        }
+
+        ThemeSummary theme = getItem(position);
+        // layout passes and requeries rebind the cells already showing this theme, leave
+        // them be unless the archive changed
+        if (isSameTheme(holder.theme, theme)) {
+            holder.theme = theme;
+            return convertView;
+        }
+
+        cancelPreview(holder);
+        releasePreview(holder);
+        holder.theme = theme;
+        holder.index = Math.min(Math.max(0, position - mGridView.getFirstVisiblePosition()),
+                MAX_ANIMATION_SLOT);
+        holder.name.setText(theme.getTitle());
+        if (theme.isMissing()) {
+            // deleted since the list was built, there is no archive to load from
+            holder.osTag.setImageDrawable(null);
+            holder.progress.setVisibility(View.GONE);
+            holder.preview.setImageResource(R.drawable.no_preview);
+            return convertView;
+        }
+        holder.progress.setVisibility(View.VISIBLE);
+        if (theme.getIsCosTheme())
+            holder.osTag.setImageResource(R.drawable.chaos);
+        else
+            holder.osTag.setImageResource(R.drawable.miui);
+        loadPreview(theme, holder);
+        return convertView;
+    }
+
+    private static boolean isSameTheme(ThemeSummary shown, ThemeSummary theme) {
+        if (shown == theme)
+            return true;
+        return shown != null && shown.getId() == theme.getId()
+                && shown.getLastModified() == theme.getLastModified();
+    }
+
+    @Override
+    public void onMovedToScrapHeap(View view) {
+        Object tag = view.getTag();
+        if (tag instanceof PreviewHolder) {
+            PreviewHolder holder = (PreviewHolder) tag;
+            cancelPreview(holder);
+            releasePreview(holder);
+            holder.theme = null;
+        }
+    }
+
+    /**
+     * Takes the cell's bitmap off screen and hands it back to the pool
+     */
+    private void releasePreview(PreviewHolder holder) {
+        holder.preview.cancelFlip();
+        holder.preview.setImageResource(R.drawable.empty_preview);
+        BitmapPool.getInstance().release(holder.bitmap);
+        BitmapPool.getInstance().release(holder.placeholder);
+        holder.bitmap = null;
+        holder.placeholder = null;
+    }
+
+    @Override
+    public void onScrollStateChanged(AbsListView view, int scrollState) {
+        if (scrollState != SCROLL_STATE_IDLE)
+            return;
+        int start = view.getLastVisiblePosition() + 1;
+        int end = Math.min(getCount(), start + mNumColumns * PREFETCH_ROWS);
+        for (int i = start; i < end; i++) {
+            ThemeSummary theme = getItem(i);
+            if (!theme.isMissing())
+                prefetchPreview(theme);
+        }
+    }
+
+    @Override
+    public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+            int totalItemCount) {
+    }
+
+    public void destroy() {
+        if (mGridView != null) {
+            mGridView.setRecyclerListener(null);
+            mGridView.setOnScrollListener(null);
+            for (int i = 0; i < mGridView.getChildCount(); i++)
+                onMovedToScrapHeap(mGridView.getChildAt(i));
+        }
+        mGridView = null;
+        mThemes = null;
+        mContext = null;
+    }
+}
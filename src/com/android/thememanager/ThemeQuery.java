@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2013 The ChameleonOS Project
+ *
+ * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.thememanager;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Describes which themes ThemesDataSource should return and in what order.
+ * Component filters take Theme.COMPONENT_* bitmasks, see Theme.getComponentsForElement.
+ */
+public class ThemeQuery {
+    public static final int ORDER_NONE = 0;
+    public static final int ORDER_COMPLETE_FIRST = 1;
+    public static final int ORDER_TITLE = 2;
+
+    private int mAnyComponents = 0;
+    private int mAllComponents = 0;
+    private boolean mCompleteOnly = false;
+    private boolean mCosOnly = false;
+    private int mOrder = ORDER_NONE;
+    private int mLimit = -1;
+    private int mOffset = 0;
+    private int[] mPreviewTypes = new int[0];
+
+    /**
+     * Matches themes with the components needed by the given THEME_ELEMENT_TYPE.  The
+     * summaries come with the first preview of the element and of the mixer that follows
+     * it so both can be loaded without reading every preview of the theme.
+     */
+    public static ThemeQuery forElement(int elementType) {
+        int type = PreviewHelper.getPreviewTypeForElement(elementType);
+        int nextType = PreviewHelper.getPreviewTypeForElement(Theme.getNextElement(elementType));
+        int[] types;
+        if (type < 0)
+            types = nextType < 0 ? new int[0] : new int[] { nextType };
+        else
+            types = nextType < 0 || nextType == type ? new int[] { type } : new int[] { type, nextType };
+        return new ThemeQuery().setAnyComponents(Theme.getComponentsForElement(elementType))
+                .setPreviewTypes(types);
+    }
+
+    public ThemeQuery copy() {
+        ThemeQuery query = new ThemeQuery();
+        query.mAnyComponents = mAnyComponents;
+        query.mAllComponents = mAllComponents;
+        query.mCompleteOnly = mCompleteOnly;
+        query.mCosOnly = mCosOnly;
+        query.mOrder = mOrder;
+        query.mLimit = mLimit;
+        query.mOffset = mOffset;
+        query.mPreviewTypes = mPreviewTypes;
+        return query;
+    }
+
+    /**
+     * Only match themes that contain at least one of the given components
+     */
+    public ThemeQuery setAnyComponents(int components) {
+        mAnyComponents = components;
+        return this;
+    }
+
+    /**
+     * Only match themes that contain every one of the given components
+     */
+    public ThemeQuery setAllComponents(int components) {
+        mAllComponents = components;
+        return this;
+    }
+
+    public ThemeQuery setCompleteOnly(boolean completeOnly) {
+        mCompleteOnly = completeOnly;
+        return this;
+    }
+
+    public ThemeQuery setCosOnly(boolean cosOnly) {
+        mCosOnly = cosOnly;
+        return this;
+    }
+
+    public ThemeQuery setOrder(int order) {
+        mOrder = order;
+        return this;
+    }
+
+    /**
+     * @param limit maximum number of rows, or -1 for no limit
+     */
+    public ThemeQuery setLimit(int limit) {
+        mLimit = limit;
+        return this;
+    }
+
+    public ThemeQuery setOffset(int offset) {
+        mOffset = offset;
+        return this;
+    }
+
+    /**
+     * Loads the first preview of each of the given PreviewHelper.PREVIEW_TYPE_* with
+     * every summary
+     */
+    public ThemeQuery setPreviewTypes(int... previewTypes) {
+        mPreviewTypes = previewTypes;
+        return this;
+    }
+
+    public int[] getPreviewTypes() {
+        return mPreviewTypes;
+    }
+
+    public int getLimit() {
+        return mLimit;
+    }
+
+    public int getOffset() {
+        return mOffset;
+    }
+
+    String getSelection() {
+        List<String> clauses = new ArrayList<String>(4);
+        if (mAnyComponents != 0)
+            clauses.add("(" + ThemeSQLiteHelper.COLUMN_COMPONENTS + " & " + mAnyComponents + ") != 0");
+        if (mAllComponents != 0)
+            clauses.add("(" + ThemeSQLiteHelper.COLUMN_COMPONENTS + " & " + mAllComponents + ") = "
+                    + mAllComponents);
+        if (mCompleteOnly)
+            clauses.add(ThemeSQLiteHelper.COLUMN_IS_COMPLETE + "=1");
+        if (mCosOnly)
+            clauses.add(ThemeSQLiteHelper.COLUMN_IS_COS_THEME + "=1");
+        if (clauses.size() == 0)
+            return null;
+
+        StringBuilder selection = new StringBuilder();
+        for (String clause : clauses) {
+            if (selection.length() > 0)
+                selection.append(" AND ");
+            selection.append(clause);
+        }
+        return selection.toString();
+    }
+
+    String getOrderBy() {
+        // _id keeps the order stable so pages do not overlap
+        switch (mOrder) {
+            case ORDER_COMPLETE_FIRST:
+                return ThemeSQLiteHelper.COLUMN_IS_COMPLETE + " DESC, " + ThemeSQLiteHelper.COLUMN_ID;
+            case ORDER_TITLE:
+                return ThemeSQLiteHelper.COLUMN_THEME_TITLE + " COLLATE NOCASE, "
+                        + ThemeSQLiteHelper.COLUMN_ID;
+            default:
+                return ThemeSQLiteHelper.COLUMN_ID;
+        }
+    }
+
+    String getLimitClause() {
+        if (mLimit < 0)
+            return mOffset > 0 ? mOffset + ",-1" : null;
+        return mOffset + "," + mLimit;
+    }
+}
@@ -15,13 +15,19 @@
 
 package com.android.thememanager;
 
+import android.content.ContentValues;
 import android.content.Context;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.util.Log;
 
 public class ThemeSQLiteHelper extends SQLiteOpenHelper {
+    private static final String TAG = "ThemeSQLiteHelper";
 
     public static final String TABLE_THEMES = "themes";
+    public static final String TABLE_THEMES_SEARCH = "themes_search";
+    public static final String TABLE_PREVIEWS = "theme_previews";
     public static final String COLUMN_ID = "_id";
     public static final String COLUMN_THEME_FILE_NAME = "file_name";
     public static final String COLUMN_THEME_TITLE = "title";
@@ -32,6 +38,22 @@ public class ThemeSQLiteHelper extends SQLiteOpenHelper {
     public static final String COLUMN_THEME_PATH = "theme_path";
     public static final String COLUMN_IS_COS_THEME = "cos_theme";
     public static final String COLUMN_IS_DEFAULT_THEME = "default_theme";
+    public static final String COLUMN_LAST_MODIFIED = "last_modified";
+    public static final String COLUMN_IS_COMPLETE = "is_complete";
+    public static final String COLUMN_PREVIEWS_LIST = "previews_list";
+    public static final String COLUMN_COMPONENTS = "components";
+    public static final String COLUMN_MAIN_PREVIEW = "main_preview";
+    public static final String COLUMN_TINY_PREVIEW = "tiny_preview";
+
+    // theme_previews columns
+    public static final String COLUMN_PREVIEW_THEME_ID = "theme_id";
+    public static final String COLUMN_PREVIEW_TYPE = "type";
+    public static final String COLUMN_PREVIEW_ORDINAL = "ordinal";
+    public static final String COLUMN_PREVIEW_ENTRY = "entry";
+    // computed by element grid queries, followed by the preview type
+    public static final String COLUMN_FIRST_PREVIEW_PREFIX = "first_preview_";
+
+    // Per component flags used before version 15, now packed into COLUMN_COMPONENTS
     public static final String COLUMN_HAS_WALLPAPER = "has_wallpaper";
     public static final String COLUMN_HAS_LOCK_WALLPAPER = "has_lock_wallpaper";
     public static final String COLUMN_HAS_ICONS = "has_icons";
@@ -44,19 +66,19 @@ public class ThemeSQLiteHelper extends SQLiteOpenHelper {
     public static final String COLUMN_HAS_BOOTANIMATION = "has_bootanimation";
     public static final String COLUMN_HAS_MMS = "has_mms";
     public static final String COLUMN_HAS_FONT = "has_font";
-    public static final String COLUMN_LAST_MODIFIED = "last_modified";
-    public static final String COLUMN_IS_COMPLETE = "is_complete";
-    public static final String COLUMN_PREVIEWS_LIST = "previews_list";
 
     private static final String DATABASE_NAME = "themesdb";
-    private static final int DATABASE_VERSION = 13;
+    private static final int DATABASE_VERSION = 20;
+
+    // Oldest version that can be migrated, anything older is recreated
+    private static final int MIN_UPGRADE_VERSION = 13;
 
     // Database creation SQL statement
     private static final String DATABASE_CREATE = "create table "
             + TABLE_THEMES + "("
             + COLUMN_ID + " integer primary key autoincrement, "
             + COLUMN_THEME_FILE_NAME + " text not null, "
-            + COLUMN_LAST_MODIFIED + " text, "
+            + COLUMN_LAST_MODIFIED + " integer not null default 0, "
             + COLUMN_THEME_TITLE + " text, "
             + COLUMN_THEME_AUTHOR + " text, "
             + COLUMN_THEME_DESIGNER + " text, "
@@ -65,37 +87,307 @@ public class ThemeSQLiteHelper extends SQLiteOpenHelper {
             + COLUMN_THEME_PATH + " text not null, "
             + COLUMN_IS_COS_THEME + " integer, "
             + COLUMN_IS_DEFAULT_THEME + " integer, "
-            + COLUMN_HAS_WALLPAPER + " integer, "
-            + COLUMN_HAS_LOCK_WALLPAPER + " integer, "
-            + COLUMN_HAS_ICONS + " integer, "
-            + COLUMN_HAS_CONTACTS + " integer, "
-            + COLUMN_HAS_DIALER + " integer, "
-            + COLUMN_HAS_SYSTEMUI + " integer, "
-            + COLUMN_HAS_FRAMEWORK + " integer, "
-            + COLUMN_HAS_RINGTONE + " integer, "
-            + COLUMN_HAS_NOTIFICATION + " integer, "
-            + COLUMN_HAS_BOOTANIMATION + " integer, "
-            + COLUMN_HAS_MMS + " integer, "
-            + COLUMN_HAS_FONT + " integer, "
+            + COLUMN_COMPONENTS + " integer not null default 0, "
             + COLUMN_IS_COMPLETE + " integer, "
+            + COLUMN_MAIN_PREVIEW + " text, "
+            + COLUMN_TINY_PREVIEW + " blob, "
             + COLUMN_PREVIEWS_LIST + " text);";
 
+    // Upserts replace rows keyed on the theme's file name
+    private static final String INDEX_FILE_NAME_CREATE = "create unique index "
+            + TABLE_THEMES + "_" + COLUMN_THEME_FILE_NAME + "_idx on "
+            + TABLE_THEMES + "(" + COLUMN_THEME_FILE_NAME + ");";
+
+    private static final String INDEX_COMPONENTS_CREATE = "create index "
+            + TABLE_THEMES + "_" + COLUMN_COMPONENTS + "_idx on "
+            + TABLE_THEMES + "(" + COLUMN_COMPONENTS + ", " + COLUMN_IS_COMPLETE + ");";
+
+    // Full text index over title, author and designer, the docid is the theme's _id
+    private static final String SEARCH_CREATE = "create virtual table "
+            + TABLE_THEMES_SEARCH + " using fts4("
+            + COLUMN_THEME_TITLE + ", "
+            + COLUMN_THEME_AUTHOR + ", "
+            + COLUMN_THEME_DESIGNER + ");";
+
+    private static final String SEARCH_COLUMNS = "docid, " + COLUMN_THEME_TITLE + ", "
+            + COLUMN_THEME_AUTHOR + ", " + COLUMN_THEME_DESIGNER;
+    private static final String SEARCH_VALUES = "new." + COLUMN_ID + ", new." + COLUMN_THEME_TITLE
+            + ", new." + COLUMN_THEME_AUTHOR + ", new." + COLUMN_THEME_DESIGNER;
+
+    // Rewrites the search row only when an indexed column actually changed, preview
+    // backfills and rescans of an unchanged theme leave the index alone
+    private static final String SEARCH_UPDATE_TRIGGER_CREATE = "create trigger "
+            + TABLE_THEMES_SEARCH + "_au after update of " + COLUMN_THEME_TITLE + ", "
+            + COLUMN_THEME_AUTHOR + ", " + COLUMN_THEME_DESIGNER + " on " + TABLE_THEMES
+            + " when old." + COLUMN_THEME_TITLE + " is not new." + COLUMN_THEME_TITLE
+            + " or old." + COLUMN_THEME_AUTHOR + " is not new." + COLUMN_THEME_AUTHOR
+            + " or old." + COLUMN_THEME_DESIGNER + " is not new." + COLUMN_THEME_DESIGNER
+            + " begin delete from " + TABLE_THEMES_SEARCH + " where docid=old." + COLUMN_ID
+            + "; insert into " + TABLE_THEMES_SEARCH + "(" + SEARCH_COLUMNS
+            + ") values (" + SEARCH_VALUES + "); end;";
+
+    // Keep the search index in step with every write to the themes table.  Themes are
+    // updated in place, the before insert trigger only guards against a stale row.
+    private static final String[] SEARCH_TRIGGERS_CREATE = {
+            "create trigger " + TABLE_THEMES_SEARCH + "_bi before insert on " + TABLE_THEMES
+                    + " begin delete from " + TABLE_THEMES_SEARCH + " where docid in (select "
+                    + COLUMN_ID + " from " + TABLE_THEMES + " where " + COLUMN_THEME_FILE_NAME
+                    + "=new." + COLUMN_THEME_FILE_NAME + "); end;",
+            "create trigger " + TABLE_THEMES_SEARCH + "_ai after insert on " + TABLE_THEMES
+                    + " begin insert into " + TABLE_THEMES_SEARCH + "(" + SEARCH_COLUMNS
+                    + ") values (" + SEARCH_VALUES + "); end;",
+            SEARCH_UPDATE_TRIGGER_CREATE,
+            "create trigger " + TABLE_THEMES_SEARCH + "_ad after delete on " + TABLE_THEMES
+                    + " begin delete from " + TABLE_THEMES_SEARCH + " where docid=old." + COLUMN_ID
+                    + "; end;" };
+
+    // One row per preview, PreviewHelper.PREVIEW_TYPE_* and the position in its sorted group
+    private static final String PREVIEWS_CREATE = "create table "
+            + TABLE_PREVIEWS + "("
+            + COLUMN_PREVIEW_THEME_ID + " integer not null, "
+            + COLUMN_PREVIEW_TYPE + " integer not null, "
+            + COLUMN_PREVIEW_ORDINAL + " integer not null, "
+            + COLUMN_PREVIEW_ENTRY + " text not null, "
+            + "primary key (" + COLUMN_PREVIEW_THEME_ID + ", " + COLUMN_PREVIEW_TYPE + ", "
+            + COLUMN_PREVIEW_ORDINAL + "));";
+
+    // ThemesDataSource rewrites the rows of a theme whenever it upserts it, the triggers
+    // drop the rows of deleted themes
+    private static final String[] PREVIEWS_TRIGGERS_CREATE = {
+            "create trigger " + TABLE_PREVIEWS + "_bi before insert on " + TABLE_THEMES
+                    + " begin delete from " + TABLE_PREVIEWS + " where "
+                    + COLUMN_PREVIEW_THEME_ID + " in (select " + COLUMN_ID + " from "
+                    + TABLE_THEMES + " where " + COLUMN_THEME_FILE_NAME + "=new."
+                    + COLUMN_THEME_FILE_NAME + "); end;",
+            "create trigger " + TABLE_PREVIEWS + "_ad after delete on " + TABLE_THEMES
+                    + " begin delete from " + TABLE_PREVIEWS + " where "
+                    + COLUMN_PREVIEW_THEME_ID + "=old." + COLUMN_ID + "; end;" };
+
+    private static ThemeSQLiteHelper sInstance;
+
+    /**
+     * Returns the process wide helper.  The database it opens is shared by every
+     * ThemesDataSource and stays open for the lifetime of the process.
+     */
+    public static synchronized ThemeSQLiteHelper getInstance(Context context) {
+        if (sInstance == null)
+            sInstance = new ThemeSQLiteHelper(context.getApplicationContext());
+        return sInstance;
+    }
 
-    public ThemeSQLiteHelper(Context context) {
+    private ThemeSQLiteHelper(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        // lets the grids read through the connection pool while the scanner writes
+        setWriteAheadLoggingEnabled(true);
     }
 
     @Override
     public void onCreate(SQLiteDatabase database) {
         database.execSQL(DATABASE_CREATE);
+        database.execSQL(INDEX_FILE_NAME_CREATE);
+        database.execSQL(INDEX_COMPONENTS_CREATE);
+        createSearchIndex(database);
+        createPreviewIndex(database);
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        int version = oldVersion;
-        //if (version != DATABASE_VERSION) {
+        if (oldVersion < MIN_UPGRADE_VERSION) {
+            Log.w(TAG, "Recreating database, version " + oldVersion + " is too old to migrate");
             db.execSQL("DROP TABLE IF EXISTS " + TABLE_THEMES);
+            db.execSQL("DROP TABLE IF EXISTS " + TABLE_THEMES_SEARCH);
+            db.execSQL("DROP TABLE IF EXISTS " + TABLE_PREVIEWS);
             onCreate(db);
-        //}
+            return;
+        }
+
+        // each step brings the schema up by one version so the existing index survives
+        int version = oldVersion;
+        if (version == 13) {
+            upgradeToVersion14(db);
+            version = 14;
+        }
+        if (version == 14) {
+            upgradeToVersion15(db);
+            version = 15;
+        }
+        if (version == 15) {
+            upgradeToVersion16(db);
+            version = 16;
+        }
+        if (version == 16) {
+            createSearchIndex(db);
+            version = 17;
+        }
+        if (version == 17) {
+            createPreviewIndex(db);
+            version = 18;
+        }
+        if (version == 18) {
+            // left empty, the next library scan renders the tiny previews
+            db.execSQL("ALTER TABLE " + TABLE_THEMES + " ADD COLUMN " + COLUMN_TINY_PREVIEW
+                    + " blob");
+            version = 19;
+        }
+        if (version == 19) {
+            db.execSQL("DROP TRIGGER IF EXISTS " + TABLE_THEMES_SEARCH + "_au");
+            db.execSQL(SEARCH_UPDATE_TRIGGER_CREATE);
+            version = 20;
+        }
+    }
+
+    /**
+     * Adds the unique file name index, dropping any duplicate rows first
+     */
+    private void upgradeToVersion14(SQLiteDatabase db) {
+        db.execSQL("DELETE FROM " + TABLE_THEMES + " WHERE " + COLUMN_ID + " NOT IN "
+                + "(SELECT MAX(" + COLUMN_ID + ") FROM " + TABLE_THEMES
+                + " GROUP BY " + COLUMN_THEME_FILE_NAME + ")");
+        db.execSQL(INDEX_FILE_NAME_CREATE);
+    }
+
+    /**
+     * Converts last_modified to an integer and packs the has_* flags into components.
+     * SQLite can not alter column types so the table is rebuilt and the rows copied.
+     */
+    private void upgradeToVersion15(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE " + TABLE_THEMES + " RENAME TO " + TABLE_THEMES + "_old");
+        db.execSQL("DROP INDEX IF EXISTS " + TABLE_THEMES + "_" + COLUMN_THEME_FILE_NAME + "_idx");
+        // the table as it looked in version 15, later steps add to it
+        db.execSQL("create table "
+                + TABLE_THEMES + "("
+                + COLUMN_ID + " integer primary key autoincrement, "
+                + COLUMN_THEME_FILE_NAME + " text not null, "
+                + COLUMN_LAST_MODIFIED + " integer not null default 0, "
+                + COLUMN_THEME_TITLE + " text, "
+                + COLUMN_THEME_AUTHOR + " text, "
+                + COLUMN_THEME_DESIGNER + " text, "
+                + COLUMN_THEME_VERSION + " text, "
+                + COLUMN_THEME_UI_VERSION + " text, "
+                + COLUMN_THEME_PATH + " text not null, "
+                + COLUMN_IS_COS_THEME + " integer, "
+                + COLUMN_IS_DEFAULT_THEME + " integer, "
+                + COLUMN_COMPONENTS + " integer not null default 0, "
+                + COLUMN_IS_COMPLETE + " integer, "
+                + COLUMN_PREVIEWS_LIST + " text);");
+        db.execSQL(INDEX_FILE_NAME_CREATE);
+        db.execSQL(INDEX_COMPONENTS_CREATE);
+        db.execSQL("INSERT INTO " + TABLE_THEMES + " ("
+                + COLUMN_ID + ", "
+                + COLUMN_THEME_FILE_NAME + ", "
+                + COLUMN_LAST_MODIFIED + ", "
+                + COLUMN_THEME_TITLE + ", "
+                + COLUMN_THEME_AUTHOR + ", "
+                + COLUMN_THEME_DESIGNER + ", "
+                + COLUMN_THEME_VERSION + ", "
+                + COLUMN_THEME_UI_VERSION + ", "
+                + COLUMN_THEME_PATH + ", "
+                + COLUMN_IS_COS_THEME + ", "
+                + COLUMN_IS_DEFAULT_THEME + ", "
+                + COLUMN_COMPONENTS + ", "
+                + COLUMN_IS_COMPLETE + ", "
+                + COLUMN_PREVIEWS_LIST + ") SELECT "
+                + COLUMN_ID + ", "
+                + COLUMN_THEME_FILE_NAME + ", "
+                + "IFNULL(CAST(" + COLUMN_LAST_MODIFIED + " AS INTEGER), 0), "
+                + COLUMN_THEME_TITLE + ", "
+                + COLUMN_THEME_AUTHOR + ", "
+                + COLUMN_THEME_DESIGNER + ", "
+                + COLUMN_THEME_VERSION + ", "
+                + COLUMN_THEME_UI_VERSION + ", "
+                + COLUMN_THEME_PATH + ", "
+                + COLUMN_IS_COS_THEME + ", "
+                + COLUMN_IS_DEFAULT_THEME + ", "
+                + packedFlag(COLUMN_HAS_ICONS, Theme.COMPONENT_ICONS) + " | "
+                + packedFlag(COLUMN_HAS_SYSTEMUI, Theme.COMPONENT_SYSTEMUI) + " | "
+                + packedFlag(COLUMN_HAS_FRAMEWORK, Theme.COMPONENT_FRAMEWORK) + " | "
+                + packedFlag(COLUMN_HAS_CONTACTS, Theme.COMPONENT_CONTACTS) + " | "
+                + packedFlag(COLUMN_HAS_DIALER, Theme.COMPONENT_DIALER) + " | "
+                + packedFlag(COLUMN_HAS_MMS, Theme.COMPONENT_MMS) + " | "
+                + packedFlag(COLUMN_HAS_WALLPAPER, Theme.COMPONENT_WALLPAPER) + " | "
+                + packedFlag(COLUMN_HAS_LOCK_WALLPAPER, Theme.COMPONENT_LOCK_WALLPAPER) + " | "
+                + packedFlag(COLUMN_HAS_RINGTONE, Theme.COMPONENT_RINGTONE) + " | "
+                + packedFlag(COLUMN_HAS_BOOTANIMATION, Theme.COMPONENT_BOOTANIMATION) + " | "
+                + packedFlag(COLUMN_HAS_FONT, Theme.COMPONENT_FONT) + " | "
+                + packedFlag(COLUMN_HAS_NOTIFICATION, Theme.COMPONENT_NOTIFICATION) + ", "
+                + COLUMN_IS_COMPLETE + ", "
+                + COLUMN_PREVIEWS_LIST
+                + " FROM " + TABLE_THEMES + "_old");
+        db.execSQL("DROP TABLE " + TABLE_THEMES + "_old");
+    }
+
+    /**
+     * Adds main_preview and fills it in from the existing preview lists
+     */
+    private void upgradeToVersion16(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE " + TABLE_THEMES + " ADD COLUMN " + COLUMN_MAIN_PREVIEW + " text");
+        Cursor c = db.query(TABLE_THEMES, new String[] { COLUMN_ID, COLUMN_PREVIEWS_LIST },
+                null, null, null, null, null);
+        if (c == null)
+            return;
+        ContentValues values = new ContentValues();
+        while (c.moveToNext()) {
+            String previews = c.getString(1);
+            if (previews == null)
+                continue;
+            values.put(COLUMN_MAIN_PREVIEW, PreviewHelper.getMainPreview(previews.split("\\|")));
+            db.update(TABLE_THEMES, values, COLUMN_ID + "=?",
+                    new String[] { String.valueOf(c.getLong(0)) });
+        }
+        c.close();
+    }
+
+    /**
+     * Creates the search index and its triggers and indexes any existing themes
+     */
+    private void createSearchIndex(SQLiteDatabase db) {
+        db.execSQL(SEARCH_CREATE);
+        for (String trigger : SEARCH_TRIGGERS_CREATE)
+            db.execSQL(trigger);
+        db.execSQL("INSERT INTO " + TABLE_THEMES_SEARCH + "(" + SEARCH_COLUMNS + ") SELECT "
+                + COLUMN_ID + ", " + COLUMN_THEME_TITLE + ", " + COLUMN_THEME_AUTHOR + ", "
+                + COLUMN_THEME_DESIGNER + " FROM " + TABLE_THEMES);
+    }
+
+    /**
+     * Creates the preview table and its triggers and fills it from the existing preview lists
+     */
+    private void createPreviewIndex(SQLiteDatabase db) {
+        db.execSQL(PREVIEWS_CREATE);
+        for (String trigger : PREVIEWS_TRIGGERS_CREATE)
+            db.execSQL(trigger);
+        Cursor c = db.query(TABLE_THEMES, new String[] { COLUMN_ID, COLUMN_PREVIEWS_LIST },
+                null, null, null, null, null);
+        if (c == null)
+            return;
+        while (c.moveToNext()) {
+            String previews = c.getString(1);
+            if (previews != null)
+                insertPreviews(db, c.getLong(0),
+                        PreviewHelper.buildPreviewIndex(previews.split("\\|")));
+        }
+        c.close();
+    }
+
+    /**
+     * Stores the grouped previews of the theme with the given row id
+     */
+    static void insertPreviews(SQLiteDatabase db, long themeId, String[][] index) {
+        ContentValues values = new ContentValues();
+        for (int type = 0; type < index.length; type++) {
+            if (index[type] == null)
+                continue;
+            for (int ordinal = 0; ordinal < index[type].length; ordinal++) {
+                values.put(COLUMN_PREVIEW_THEME_ID, themeId);
+                values.put(COLUMN_PREVIEW_TYPE, type);
+                values.put(COLUMN_PREVIEW_ORDINAL, ordinal);
+                values.put(COLUMN_PREVIEW_ENTRY, index[type][ordinal]);
+                db.insertOrThrow(TABLE_PREVIEWS, null, values);
+            }
+        }
+    }
+
+    private static String packedFlag(String column, int flag) {
+        return "(CASE WHEN " + column + "=1 THEN " + flag + " ELSE 0 END)";
     }
 }
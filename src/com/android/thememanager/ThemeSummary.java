@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2013 The ChameleonOS Project
+ *
+ * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.thememanager;
+
+/**
+ * The subset of a theme's columns the preview grids need to bind a cell.
+ * Theme extends this with the full set of details.
+ */
+public class ThemeSummary {
+    private long id;
+    private String fileName;
+    private String title;
+    private String themePath;
+    private boolean isCosTheme;
+    private boolean isDefaultTheme;
+    private long lastModified;
+    private String mainPreview;
+    private byte[] tinyPreview;
+    private String previewsList;
+    private String[][] previewIndex;
+    // first preview of each PreviewHelper.PREVIEW_TYPE_* loaded along with the summary
+    private String[] firstPreviews;
+    private int firstPreviewTypes;
+    // stands in for a theme deleted since the list holding it was built
+    private boolean missing;
+
+    public long getId() {
+        return id;
+    }
+
+    public void setId(long id) {
+        this.id = id;
+    }
+
+    /**
+     * True if this summary only carries the id of a theme that no longer exists, it has no
+     * archive to load previews from
+     */
+    public boolean isMissing() {
+        return missing;
+    }
+
+    public void setMissing(boolean missing) {
+        this.missing = missing;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public void setFileName(String fileName) {
+        this.fileName = fileName;
+    }
+
+    public String getTitle() {
+        return title;
+    }
+
+    public void setTitle(String title) {
+        this.title = title;
+    }
+
+    public String getThemePath() {
+        return themePath;
+    }
+
+    public void setThemePath(String themePath) {
+        this.themePath = themePath;
+    }
+
+    public boolean getIsCosTheme() {
+        return isCosTheme;
+    }
+
+    public void setIsCosTheme(boolean isCosTheme) {
+        this.isCosTheme = isCosTheme;
+    }
+
+    public boolean getIsDefaultTheme() {
+        return isDefaultTheme;
+    }
+
+    public void setIsDefaultTheme(boolean isDefaultTheme) {
+        this.isDefaultTheme = isDefaultTheme;
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    public void setLastModified(long lastModified) {
+        this.lastModified = lastModified;
+    }
+
+    /**
+     * @return the preview shown for this theme in the chooser grid
+     */
+    public String getMainPreview() {
+        return mainPreview;
+    }
+
+    public void setMainPreview(String mainPreview) {
+        this.mainPreview = mainPreview;
+    }
+
+    /**
+     * @return the encoded placeholder shown while the main preview loads, an empty array
+     * if the theme has none or null if it has not been rendered yet
+     */
+    public byte[] getTinyPreview() {
+        return tinyPreview;
+    }
+
+    public void setTinyPreview(byte[] tinyPreview) {
+        this.tinyPreview = tinyPreview;
+    }
+
+    /**
+     * @return the '|' delimited preview list, or null if it was not part of the projection
+     */
+    public String getPreviewsList() {
+        return previewsList;
+    }
+
+    public void setPreviewsList(String previewsList) {
+        this.previewsList = previewsList;
+    }
+
+    /**
+     * @return previews grouped by PreviewHelper.PREVIEW_TYPE_*, or null if not loaded yet
+     */
+    public String[][] getPreviewIndex() {
+        return previewIndex;
+    }
+
+    public void setPreviewIndex(String[][] previewIndex) {
+        this.previewIndex = previewIndex;
+    }
+
+    /**
+     * @return whether the first preview of previewType was loaded with this summary
+     */
+    public boolean hasFirstPreview(int previewType) {
+        return (firstPreviewTypes & (1 << previewType)) != 0;
+    }
+
+    /**
+     * @return the first preview of previewType, or null if the theme has none
+     */
+    public String getFirstPreview(int previewType) {
+        return firstPreviews != null ? firstPreviews[previewType] : null;
+    }
+
+    public void setFirstPreview(int previewType, String entryName) {
+        if (firstPreviews == null)
+            firstPreviews = new String[PreviewHelper.PREVIEW_TYPE_COUNT];
+        firstPreviews[previewType] = entryName;
+        firstPreviewTypes |= 1 << previewType;
+    }
+}
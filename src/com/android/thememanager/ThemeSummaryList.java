@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2013 The ChameleonOS Project
+ *
+ * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.thememanager;
+
+import android.database.Cursor;
+import android.util.LruCache;
+
+import java.util.AbstractList;
+
+/**
+ * Read only list of ThemeSummary backed by a cursor.  Rows are only turned into
+ * objects when they are asked for, so binding a grid costs one row per visible cell
+ * rather than a fully populated Theme for every installed theme.
+ * The list owns the cursor and must be closed when no longer needed.
+ */
+public class ThemeSummaryList extends AbstractList<ThemeSummary> {
+    private static final int CACHE_SIZE = 64;
+
+    private Cursor mCursor;
+    private final int mIdIndex;
+    private final int mFileNameIndex;
+    private final int mTitleIndex;
+    private final int mPathIndex;
+    private final int mCosThemeIndex;
+    private final int mDefaultThemeIndex;
+    private final int mLastModifiedIndex;
+    private final int mMainPreviewIndex;
+    private final int mTinyPreviewIndex;
+    private final int mPreviewsListIndex;
+    private final int[] mPreviewTypes;
+    private final int[] mFirstPreviewIndices;
+    private final LruCache<Integer, ThemeSummary> mCache =
+            new LruCache<Integer, ThemeSummary>(CACHE_SIZE);
+
+    public ThemeSummaryList(Cursor cursor) {
+        this(cursor, new int[0]);
+    }
+
+    /**
+     * @param previewTypes the PreviewHelper.PREVIEW_TYPE_* the cursor has a first_preview_
+     *                     column for
+     */
+    public ThemeSummaryList(Cursor cursor, int[] previewTypes) {
+        mCursor = cursor;
+        mPreviewTypes = previewTypes;
+        mIdIndex = cursor.getColumnIndexOrThrow(ThemeSQLiteHelper.COLUMN_ID);
+        mFileNameIndex = cursor.getColumnIndexOrThrow(ThemeSQLiteHelper.COLUMN_THEME_FILE_NAME);
+        mTitleIndex = cursor.getColumnIndexOrThrow(ThemeSQLiteHelper.COLUMN_THEME_TITLE);
+        mPathIndex = cursor.getColumnIndexOrThrow(ThemeSQLiteHelper.COLUMN_THEME_PATH);
+        mCosThemeIndex = cursor.getColumnIndexOrThrow(ThemeSQLiteHelper.COLUMN_IS_COS_THEME);
+        mDefaultThemeIndex = cursor.getColumnIndexOrThrow(ThemeSQLiteHelper.COLUMN_IS_DEFAULT_THEME);
+        mLastModifiedIndex = cursor.getColumnIndexOrThrow(ThemeSQLiteHelper.COLUMN_LAST_MODIFIED);
+        mMainPreviewIndex = cursor.getColumnIndexOrThrow(ThemeSQLiteHelper.COLUMN_MAIN_PREVIEW);
+        mTinyPreviewIndex = cursor.getColumnIndex(ThemeSQLiteHelper.COLUMN_TINY_PREVIEW);
+        // optional, only summaries read back with all columns have the full preview list
+        mPreviewsListIndex = cursor.getColumnIndex(ThemeSQLiteHelper.COLUMN_PREVIEWS_LIST);
+        mFirstPreviewIndices = new int[previewTypes.length];
+        for (int i = 0; i < previewTypes.length; i++) {
+            mFirstPreviewIndices[i] = cursor.getColumnIndexOrThrow(
+                    ThemeSQLiteHelper.COLUMN_FIRST_PREVIEW_PREFIX + previewTypes[i]);
+        }
+    }
+
+    @Override
+    public ThemeSummary get(int position) {
+        ThemeSummary summary = mCache.get(position);
+        if (summary != null)
+            return summary;
+
+        if (mCursor == null || !mCursor.moveToPosition(position))
+            throw new IndexOutOfBoundsException("Invalid position " + position);
+        summary = new ThemeSummary();
+        summary.setId(mCursor.getLong(mIdIndex));
+        summary.setFileName(mCursor.getString(mFileNameIndex));
+        summary.setTitle(mCursor.getString(mTitleIndex));
+        summary.setThemePath(mCursor.getString(mPathIndex));
+        summary.setIsCosTheme(mCursor.getInt(mCosThemeIndex) == 1);
+        summary.setIsDefaultTheme(mCursor.getInt(mDefaultThemeIndex) == 1);
+        summary.setLastModified(mCursor.getLong(mLastModifiedIndex));
+        summary.setMainPreview(mCursor.getString(mMainPreviewIndex));
+        if (mTinyPreviewIndex >= 0)
+            summary.setTinyPreview(mCursor.getBlob(mTinyPreviewIndex));
+        if (mPreviewsListIndex >= 0)
+            summary.setPreviewsList(mCursor.getString(mPreviewsListIndex));
+        for (int i = 0; i < mPreviewTypes.length; i++)
+            summary.setFirstPreview(mPreviewTypes[i], mCursor.getString(mFirstPreviewIndices[i]));
+        mCache.put(position, summary);
+        return summary;
+    }
+
+    @Override
+    public int size() {
+        return mCursor != null ? mCursor.getCount() : 0;
+    }
+
+    public void close() {
+        if (mCursor != null) {
+            mCursor.close();
+            mCursor = null;
+        }
+        mCache.evictAll();
+    }
+}
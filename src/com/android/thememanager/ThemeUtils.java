@@ -16,6 +16,7 @@
 package com.android.thememanager;
 
 import android.content.Context;
+import android.text.TextUtils;
 import android.util.Log;
 import android.util.Xml;
 import org.xmlpull.v1.XmlPullParser;
@@ -27,7 +28,6 @@ import java.io.FileOutputStream;
 import java.io.InputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.util.Enumeration;
 import java.util.List;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
@@ -84,6 +84,7 @@ public class ThemeUtils {
      * @param themeName theme to delete cache directory for
      */
     public static void deleteThemeCacheDir(String themeName) {
+        ThumbnailDiskCache.getInstance().invalidate(themeName);
         File f = new File(Globals.CACHE_DIR + "/" + themeName);
         if (f.exists())
             deleteFile(f);
@@ -142,26 +143,12 @@ public class ThemeUtils {
 
     public static boolean extractThemRingtones(String themeId, String themePath) {
         try {
-            ZipFile zip = new ZipFile(themePath);
-            ZipEntry ze = null;
-
             if(!cacheDirExists())
                 createCacheDir();
 
-            InputStream is = null;
-            FileOutputStream out = null;
-            ze = zip.getEntry("ringtones/ringtone.mp3");
-            if (ze != null) {
-                is = zip.getInputStream(ze);
-                out = new FileOutputStream(Globals.CACHE_DIR + "/ringtone.mp3");
-                copyInputStream(is, out);
-            }
-            ze = zip.getEntry("ringtones/notification.mp3");
-            if (ze != null) {
-                is = zip.getInputStream(ze);
-                out = new FileOutputStream(Globals.CACHE_DIR + "/notification.mp3");
-                copyInputStream(is, out);
-            }
+            extractEntry(themePath, "ringtones/ringtone.mp3", Globals.CACHE_DIR + "/ringtone.mp3");
+            extractEntry(themePath, "ringtones/notification.mp3",
+                    Globals.CACHE_DIR + "/notification.mp3");
         } catch (Exception e) {
             return false;
         }
@@ -169,6 +156,22 @@ public class ThemeUtils {
         return true;
     }
 
+    /**
+     * Copies entryName of the theme at themePath to dest, does nothing if there is no
+     * such entry
+     */
+    private static void extractEntry(String themePath, String entryName, String dest)
+            throws IOException {
+        InputStream is = ZipFileCache.getInstance().openEntry(themePath, entryName);
+        if (is == null)
+            return;
+        try {
+            copyInputStream(is, new FileOutputStream(dest));
+        } finally {
+            is.close();
+        }
+    }
+
     public static Theme getThemeEntryById(long id, Context context) {
         Theme theme = null;
 
@@ -180,11 +183,12 @@ public class ThemeUtils {
         return theme;
     }
 
-    public static void deleteTheme(Theme theme, Context context) {
+    public static void deleteTheme(ThemeSummary theme, Context context) {
         ThemesDataSource dataSource = new ThemesDataSource(context);
         dataSource.open();
         dataSource.deleteTheme(theme);
         dataSource.close();
+        ZipFileCache.getInstance().invalidate(theme.getThemePath());
         (new File(theme.getThemePath())).delete();
     }
 
@@ -198,25 +202,64 @@ public class ThemeUtils {
 
     public static boolean addThemeEntryToDb(String themeId, String themePath,
             Context context, boolean isDefaultTheme) {
+        return addThemeEntryToDb(themeId, themePath, context, isDefaultTheme, false);
+    }
+
+    /**
+     * Parses the theme at themePath and stores it in the database
+     * @param force re-parse the theme even if the database entry is up to date
+     */
+    public static boolean addThemeEntryToDb(String themeId, String themePath,
+            Context context, boolean isDefaultTheme, boolean force) {
+        ThemesDataSource dataSource = new ThemesDataSource(context);
+        File file = new File(themePath);
+        long lastModified = file.lastModified();
+        dataSource.open();
+        if (!force && dataSource.entryExists(themeId)) {
+            if(!dataSource.entryIsOlder(themeId, lastModified)) {
+                dataSource.close();
+                return true;
+            }
+        }
+
+        Theme theme = createThemeFromArchive(themeId, themePath, isDefaultTheme);
+        if (theme == null) {
+            dataSource.close();
+            return false;
+        }
+
+        try {
+            dataSource.createThemeEntry(theme);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        dataSource.close();
+
+        return true;
+    }
+
+    /**
+     * Reads the description and contents of a theme archive without touching the database
+     * @return the parsed theme or null if the archive could not be read
+     */
+    public static Theme createThemeFromArchive(String themeId, String themePath,
+            boolean isDefaultTheme) {
         try {
-            ThemesDataSource dataSource = new ThemesDataSource(context);
             File file = new File(themePath);
             long lastModified = file.lastModified();
-            dataSource.open();
-            if (dataSource.entryExists(themeId)) {
-                if(!dataSource.entryIsOlder(themeId, lastModified)) {
-                    dataSource.close();
-                    return true;
-                }
-            }
+            ThemeArchiveProbe probe = ThemeArchiveProbe.probe(themePath);
+            ThemeArchiveProbe.EntryInfo entry = probe.getDescriptionEntry();
+            if (entry == null)
+                return null;
 
-            ZipFile zip = new ZipFile(themePath);
-            ZipEntry entry = zip.getEntry("description.xml");
             ThemeDetails details = null;
+            InputStream is = probe.openEntry(entry);
             try {
-                details = getThemeDetails(zip.getInputStream(entry));
+                details = getThemeDetails(is);
             } catch (Exception e) {
-                return false;
+                return null;
+            } finally {
+                is.close();
             }
 
             Theme theme = new Theme();
@@ -229,60 +272,68 @@ public class ThemeUtils {
             theme.setUiVersion(details.uiVersion);
             theme.setIsCosTheme(details.isCosTheme);
             theme.setIsDefaultTheme(isDefaultTheme);
-            theme.setHasWallpaper(zip.getEntry("wallpaper/default_wallpaper.jpg") != null ||
-                    zip.getEntry("wallpaper/default_wallpaper.png") != null);
-            theme.setHasLockscreenWallpaper(zip.getEntry("wallpaper/default_lock_wallpaper.jpg") != null ||
-                    zip.getEntry("wallpaper/default_lock_wallpaper.png") != null);
-            theme.setHasIcons(zip.getEntry("icons") != null);
-            theme.setHasContacts(zip.getEntry("com.android.contacts") != null);
-            theme.setHasDialer(zip.getEntry("com.android.dialer") != null);
-            theme.setHasSystemUI(zip.getEntry("com.android.systemui") != null);
-            theme.setHasFramework(zip.getEntry("framework-res") != null);
-            theme.setHasRingtone(zip.getEntry("ringtones/ringtone.mp3") != null);
-            theme.setHasNotification(zip.getEntry("ringtones/notification.mp3") != null);
-            theme.setHasBootanimation(zip.getEntry("boots") != null);
-            theme.setHasMms(zip.getEntry("com.android.mms") != null);
-            theme.setHasFont(zip.getEntry("fonts") != null);
-            theme.setIsComplete(theme.getHasSystemUI() && theme.getHasFramework() &&
-                    theme.getHasMms() && theme.getHasContacts());
+            int components = probe.getComponents();
+            theme.setComponents(components);
+            theme.setIsComplete(
+                    (components & Theme.COMPONENTS_COMPLETE) == Theme.COMPONENTS_COMPLETE);
             theme.setLastModified(lastModified);
-            theme.setPreviewsList(
-                    createPreviewList(zip, theme.getHasWallpaper(), theme.getHasLockscreenWallpaper()));
-
-            try {
-                dataSource.createThemeEntry(theme);
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
-            dataSource.close();
+            String[] previews = probe.getPreviews().toArray(new String[0]);
+            theme.setPreviewsList(TextUtils.join("|", previews));
+            String mainPreview = PreviewHelper.getMainPreview(previews);
+            theme.setMainPreview(mainPreview);
+            theme.setTinyPreview(createTinyPreview(probe,
+                    mainPreview != null ? probe.getEntry(mainPreview) : null));
+
+            return theme;
         } catch (IOException e) {
-            return false;
+            return null;
         }
-
-        return true;
     }
 
-    private static String createPreviewList(ZipFile zip, boolean hasWallpaper, boolean hasLockWallpaper) {
+    /**
+     * Renders the tiny placeholder of a theme from its main preview entry
+     * @return the encoded placeholder, empty if the theme has no usable preview
+     */
+    private static byte[] createTinyPreview(final ThemeArchiveProbe probe,
+            final ThemeArchiveProbe.EntryInfo entry) {
+        if (entry == null)
+            return new byte[0];
         try {
-            StringBuilder builder = new StringBuilder();
-            String delimeter = "";
-            ZipEntry ze;
-            for (Enumeration<? extends ZipEntry> e = zip.entries(); e.hasMoreElements();) {
-                ze = e.nextElement();
-                if (ze.getName().contains("preview_")) {
-                    builder.append(delimeter);
-                    delimeter = "|";
-                    builder.append(ze.getName());
+            byte[] data = PreviewLoader.createTinyPreview(new BitmapDecoder.StreamOpener() {
+                @Override
+                public InputStream open() throws IOException {
+                    return probe.openEntry(entry);
                 }
-            }
-            if (hasWallpaper)
-                builder.append("|wallpaper/default_wallpaper.jpg");
-            if (hasLockWallpaper)
-                builder.append("|wallpaper/default_lock_wallpaper.jpg");
-            return builder.toString();
-        } catch (Exception e) {
+            });
+            return data != null ? data : new byte[0];
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to render the tiny preview of " + probe.getPath(), e);
+            return new byte[0];
+        }
+    }
+
+    /**
+     * Renders the tiny placeholder of the theme at themePath from its main preview
+     * @return the encoded placeholder, empty if the theme has no usable preview
+     */
+    public static byte[] createTinyPreview(String themePath, String mainPreview) {
+        if (mainPreview == null)
+            return new byte[0];
+        ZipFileCache zipCache = ZipFileCache.getInstance();
+        ZipFile zip = null;
+        try {
+            zip = zipCache.acquire(themePath);
+            ZipEntry entry = zip.getEntry(mainPreview);
+            if (entry == null)
+                return new byte[0];
+            byte[] data = PreviewLoader.createTinyPreview(BitmapDecoder.fromZipEntry(zip, entry));
+            return data != null ? data : new byte[0];
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to render the tiny preview of " + themePath, e);
+            return new byte[0];
+        } finally {
+            zipCache.release(zip);
         }
-        return null;
     }
 
     public static ThemeDetails getThemeDetails(InputStream descriptionEntry)
@@ -345,17 +396,17 @@ public class ThemeUtils {
         ThemeDetails details = new ThemeDetails();
 
         try {
-            ZipFile zip = new ZipFile(themePath);
-            ZipEntry entry = zip.getEntry("description.xml");
-            if (entry == null)
+            InputStream is = ZipFileCache.getInstance().openEntry(themePath, "description.xml");
+            if (is == null)
                 return details;
 
             try {
-                details = getThemeDetails(zip.getInputStream(entry));
+                details = getThemeDetails(is);
             } catch (Exception e) {
                 return null;
+            } finally {
+                is.close();
             }
-            zip.close();
         } catch (FileNotFoundException e) {
             return null;
         } catch (IOException e) {
@@ -15,20 +15,71 @@
 
 package com.android.thememanager;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.text.TextUtils;
 
 public class ThemesDataSource {
 
     // Database fields
     private SQLiteDatabase database;
     private ThemeSQLiteHelper dbHelper;
+    private SQLiteStatement mInsertStatement;
+    private SQLiteStatement mUpdateStatement;
+    private SQLiteStatement mIdStatement;
+
+    // Columns needed to bind a preview grid cell, element grids use the preview list
+    // to pick the preview for their element
+    private static final String[] sSummaryColumns = {
+            ThemeSQLiteHelper.COLUMN_ID,
+            ThemeSQLiteHelper.COLUMN_THEME_FILE_NAME,
+            ThemeSQLiteHelper.COLUMN_THEME_TITLE,
+            ThemeSQLiteHelper.COLUMN_THEME_PATH,
+            ThemeSQLiteHelper.COLUMN_IS_COS_THEME,
+            ThemeSQLiteHelper.COLUMN_IS_DEFAULT_THEME,
+            ThemeSQLiteHelper.COLUMN_LAST_MODIFIED,
+            ThemeSQLiteHelper.COLUMN_MAIN_PREVIEW,
+            ThemeSQLiteHelper.COLUMN_TINY_PREVIEW };
+
+    // Rank weights for the title, author and designer search columns
+    private static final float[] sSearchWeights = { 4f, 2f, 1f };
+
+    // Columns written by upsertThemes, in bind order
+    private static final String[] sUpsertColumns = {
+            ThemeSQLiteHelper.COLUMN_THEME_FILE_NAME,
+            ThemeSQLiteHelper.COLUMN_LAST_MODIFIED,
+            ThemeSQLiteHelper.COLUMN_THEME_TITLE,
+            ThemeSQLiteHelper.COLUMN_THEME_AUTHOR,
+            ThemeSQLiteHelper.COLUMN_THEME_DESIGNER,
+            ThemeSQLiteHelper.COLUMN_THEME_VERSION,
+            ThemeSQLiteHelper.COLUMN_THEME_UI_VERSION,
+            ThemeSQLiteHelper.COLUMN_THEME_PATH,
+            ThemeSQLiteHelper.COLUMN_IS_COS_THEME,
+            ThemeSQLiteHelper.COLUMN_IS_DEFAULT_THEME,
+            ThemeSQLiteHelper.COLUMN_COMPONENTS,
+            ThemeSQLiteHelper.COLUMN_IS_COMPLETE,
+            ThemeSQLiteHelper.COLUMN_MAIN_PREVIEW,
+            ThemeSQLiteHelper.COLUMN_TINY_PREVIEW,
+            ThemeSQLiteHelper.COLUMN_PREVIEWS_LIST };
+
     private String[] allColumns = {
             ThemeSQLiteHelper.COLUMN_ID,
             ThemeSQLiteHelper.COLUMN_THEME_FILE_NAME,
@@ -41,109 +92,237 @@ public class ThemesDataSource {
             ThemeSQLiteHelper.COLUMN_THEME_PATH,
             ThemeSQLiteHelper.COLUMN_IS_COS_THEME,
             ThemeSQLiteHelper.COLUMN_IS_DEFAULT_THEME,
-            ThemeSQLiteHelper.COLUMN_HAS_WALLPAPER,
-            ThemeSQLiteHelper.COLUMN_HAS_LOCK_WALLPAPER,
-            ThemeSQLiteHelper.COLUMN_HAS_ICONS,
-            ThemeSQLiteHelper.COLUMN_HAS_CONTACTS,
-            ThemeSQLiteHelper.COLUMN_HAS_DIALER,
-            ThemeSQLiteHelper.COLUMN_HAS_SYSTEMUI,
-            ThemeSQLiteHelper.COLUMN_HAS_FRAMEWORK,
-            ThemeSQLiteHelper.COLUMN_HAS_RINGTONE,
-            ThemeSQLiteHelper.COLUMN_HAS_NOTIFICATION,
-            ThemeSQLiteHelper.COLUMN_HAS_BOOTANIMATION,
-            ThemeSQLiteHelper.COLUMN_HAS_MMS,
-            ThemeSQLiteHelper.COLUMN_HAS_FONT,
+            ThemeSQLiteHelper.COLUMN_COMPONENTS,
             ThemeSQLiteHelper.COLUMN_IS_COMPLETE,
+            ThemeSQLiteHelper.COLUMN_MAIN_PREVIEW,
+            ThemeSQLiteHelper.COLUMN_TINY_PREVIEW,
             ThemeSQLiteHelper.COLUMN_PREVIEWS_LIST };
 
     public ThemesDataSource(Context context) {
-        dbHelper = new ThemeSQLiteHelper(context);
+        dbHelper = ThemeSQLiteHelper.getInstance(context);
     }
 
+    /**
+     * Borrows the shared database, only the first call in the process actually opens it
+     */
     public void open() throws SQLException {
         database = dbHelper.getWritableDatabase();
     }
 
+    /**
+     * Releases this data source, the shared database itself is left open
+     */
     public void close() {
-        dbHelper.close();
+        if (mInsertStatement != null) {
+            mInsertStatement.close();
+            mUpdateStatement.close();
+            mIdStatement.close();
+            mInsertStatement = null;
+            mUpdateStatement = null;
+            mIdStatement = null;
+        }
+        database = null;
     }
 
+    /**
+     * Inserts or updates a single theme and reads the stored row back
+     */
     public Theme createThemeEntry(Theme theme) {
-        ContentValues values = new ContentValues();
-        values.put(ThemeSQLiteHelper.COLUMN_THEME_FILE_NAME, theme.getFileName());
-        values.put(ThemeSQLiteHelper.COLUMN_LAST_MODIFIED, "" + theme.getLastModified());
-        values.put(ThemeSQLiteHelper.COLUMN_THEME_TITLE, theme.getTitle());
-        values.put(ThemeSQLiteHelper.COLUMN_THEME_AUTHOR, theme.getAuthor());
-        values.put(ThemeSQLiteHelper.COLUMN_THEME_DESIGNER, theme.getDesigner());
-        values.put(ThemeSQLiteHelper.COLUMN_THEME_VERSION, theme.getVersion());
-        values.put(ThemeSQLiteHelper.COLUMN_THEME_UI_VERSION, theme.getUiVersion());
-        values.put(ThemeSQLiteHelper.COLUMN_THEME_PATH, theme.getThemePath());
-        values.put(ThemeSQLiteHelper.COLUMN_IS_COS_THEME, theme.getIsCosTheme());
-        values.put(ThemeSQLiteHelper.COLUMN_IS_DEFAULT_THEME, theme.getIsDefaultTheme());
-        values.put(ThemeSQLiteHelper.COLUMN_HAS_WALLPAPER, theme.getHasWallpaper());
-        values.put(ThemeSQLiteHelper.COLUMN_HAS_LOCK_WALLPAPER, theme.getHasLockscreenWallpaper());
-        values.put(ThemeSQLiteHelper.COLUMN_HAS_ICONS, theme.getHasIcons());
-        values.put(ThemeSQLiteHelper.COLUMN_HAS_CONTACTS, theme.getHasContacts());
-        values.put(ThemeSQLiteHelper.COLUMN_HAS_DIALER, theme.getHasDialer());
-        values.put(ThemeSQLiteHelper.COLUMN_HAS_SYSTEMUI, theme.getHasSystemUI());
-        values.put(ThemeSQLiteHelper.COLUMN_HAS_FRAMEWORK, theme.getHasFramework());
-        values.put(ThemeSQLiteHelper.COLUMN_HAS_RINGTONE, theme.getHasRingtone());
-        values.put(ThemeSQLiteHelper.COLUMN_HAS_NOTIFICATION, theme.getHasNotification());
-        values.put(ThemeSQLiteHelper.COLUMN_HAS_BOOTANIMATION, theme.getHasBootanimation());
-        values.put(ThemeSQLiteHelper.COLUMN_HAS_MMS, theme.getHasMms());
-        values.put(ThemeSQLiteHelper.COLUMN_HAS_FONT, theme.getHasFont());
-        values.put(ThemeSQLiteHelper.COLUMN_IS_COMPLETE, theme.getIsComplete());
-        values.put(ThemeSQLiteHelper.COLUMN_PREVIEWS_LIST, theme.getPreviewsList());
         long insertId;
-        if (entryExists(theme.getFileName()))
-            insertId = database.update(ThemeSQLiteHelper.TABLE_THEMES, values,
-                    ThemeSQLiteHelper.COLUMN_THEME_FILE_NAME + "='" + theme.getFileName() + "'",
-                    null);
+        database.beginTransaction();
+        try {
+            insertId = upsertTheme(theme);
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+        return getThemeById(insertId);
+    }
+
+    /**
+     * Inserts or updates all of the given themes, keyed on their file name, inside a
+     * single transaction.  Rows are not read back, instead each theme has its id set
+     * to the row id it was stored under.
+     */
+    public void upsertThemes(Collection<Theme> themes) {
+        database.beginTransaction();
+        try {
+            for (Theme theme : themes)
+                theme.setId(upsertTheme(theme));
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+    }
+
+    /**
+     * Updates the row with the theme's file name in place, so a re-indexed theme keeps
+     * the id open screens and paged lists refer to it by, and only inserts new themes
+     */
+    private long upsertTheme(Theme theme) {
+        if (mUpdateStatement == null) {
+            StringBuilder sql = new StringBuilder("UPDATE ");
+            sql.append(ThemeSQLiteHelper.TABLE_THEMES).append(" SET ");
+            for (int i = 0; i < sUpsertColumns.length; i++)
+                sql.append(i == 0 ? "" : ",").append(sUpsertColumns[i]).append("=?");
+            sql.append(" WHERE ").append(ThemeSQLiteHelper.COLUMN_THEME_FILE_NAME).append("=?");
+            mUpdateStatement = database.compileStatement(sql.toString());
+            mIdStatement = database.compileStatement("SELECT " + ThemeSQLiteHelper.COLUMN_ID
+                    + " FROM " + ThemeSQLiteHelper.TABLE_THEMES + " WHERE "
+                    + ThemeSQLiteHelper.COLUMN_THEME_FILE_NAME + "=?");
+
+            sql = new StringBuilder("INSERT INTO ");
+            sql.append(ThemeSQLiteHelper.TABLE_THEMES).append(" (");
+            sql.append(TextUtils.join(",", sUpsertColumns)).append(") VALUES (");
+            for (int i = 0; i < sUpsertColumns.length; i++)
+                sql.append(i == 0 ? "?" : ",?");
+            sql.append(")");
+            mInsertStatement = database.compileStatement(sql.toString());
+        }
+
+        long id;
+        SQLiteStatement stmt = mUpdateStatement;
+        stmt.clearBindings();
+        bindTheme(stmt, theme);
+        bindString(stmt, sUpsertColumns.length + 1, theme.getFileName());
+        if (stmt.executeUpdateDelete() > 0) {
+            mIdStatement.clearBindings();
+            bindString(mIdStatement, 1, theme.getFileName());
+            id = mIdStatement.simpleQueryForLong();
+            database.delete(ThemeSQLiteHelper.TABLE_PREVIEWS,
+                    ThemeSQLiteHelper.COLUMN_PREVIEW_THEME_ID + "=" + id, null);
+        } else {
+            stmt = mInsertStatement;
+            stmt.clearBindings();
+            bindTheme(stmt, theme);
+            id = stmt.executeInsert();
+        }
+        if (id >= 0)
+            ThemeSQLiteHelper.insertPreviews(database, id, PreviewHelper.getPreviewIndex(theme));
+        return id;
+    }
+
+    /**
+     * Binds the sUpsertColumns of theme starting at the first parameter
+     */
+    private static void bindTheme(SQLiteStatement stmt, Theme theme) {
+        int i = 1;
+        bindString(stmt, i++, theme.getFileName());
+        stmt.bindLong(i++, theme.getLastModified());
+        bindString(stmt, i++, theme.getTitle());
+        bindString(stmt, i++, theme.getAuthor());
+        bindString(stmt, i++, theme.getDesigner());
+        bindString(stmt, i++, theme.getVersion());
+        bindString(stmt, i++, theme.getUiVersion());
+        bindString(stmt, i++, theme.getThemePath());
+        bindBoolean(stmt, i++, theme.getIsCosTheme());
+        bindBoolean(stmt, i++, theme.getIsDefaultTheme());
+        stmt.bindLong(i++, theme.getComponents());
+        bindBoolean(stmt, i++, theme.getIsComplete());
+        bindString(stmt, i++, theme.getMainPreview());
+        bindBlob(stmt, i++, theme.getTinyPreview());
+        bindString(stmt, i++, theme.getPreviewsList());
+    }
+
+    private static void bindString(SQLiteStatement stmt, int index, String value) {
+        if (value != null)
+            stmt.bindString(index, value);
         else
-            insertId = database.insert(ThemeSQLiteHelper.TABLE_THEMES, null,
-                    values);
-        Cursor cursor = database.query(ThemeSQLiteHelper.TABLE_THEMES,
-                allColumns, ThemeSQLiteHelper.COLUMN_ID + " = " + insertId, null,
-                null, null, null);
-        cursor.moveToFirst();
-        Theme newTheme = cursorToTheme(cursor);
-        cursor.close();
-        return newTheme;
+            stmt.bindNull(index);
+    }
+
+    private static void bindBlob(SQLiteStatement stmt, int index, byte[] value) {
+        if (value != null)
+            stmt.bindBlob(index, value);
+        else
+            stmt.bindNull(index);
     }
 
-    public void deleteTheme(Theme theme) {
+    private static void bindBoolean(SQLiteStatement stmt, int index, boolean value) {
+        stmt.bindLong(index, value ? 1 : 0);
+    }
+
+    public void deleteTheme(ThemeSummary theme) {
         long id = theme.getId();
         System.out.println("Theme deleted with id: " + id);
         database.delete(ThemeSQLiteHelper.TABLE_THEMES, ThemeSQLiteHelper.COLUMN_ID
                 + " = " + id, null);
     }
 
-    public boolean entryExists(String themeId) {
-        Cursor c = database.query(ThemeSQLiteHelper.TABLE_THEMES, allColumns,
-                ThemeSQLiteHelper.COLUMN_THEME_FILE_NAME + "='" + themeId + "'",
-                null, null, null, null);
+    /**
+     * Returns the themes that were indexed before tiny previews were stored, with only
+     * the id, path and main preview needed to render one
+     */
+    public List<ThemeSummary> getThemesWithoutTinyPreview() {
+        List<ThemeSummary> themes = new ArrayList<ThemeSummary>();
+        Cursor c = database.query(ThemeSQLiteHelper.TABLE_THEMES, new String[] {
+                ThemeSQLiteHelper.COLUMN_ID, ThemeSQLiteHelper.COLUMN_THEME_PATH,
+                ThemeSQLiteHelper.COLUMN_MAIN_PREVIEW },
+                ThemeSQLiteHelper.COLUMN_TINY_PREVIEW + " IS NULL", null, null, null, null);
+        if (c != null) {
+            while (c.moveToNext()) {
+                ThemeSummary theme = new ThemeSummary();
+                theme.setId(c.getLong(0));
+                theme.setThemePath(c.getString(1));
+                theme.setMainPreview(c.getString(2));
+                themes.add(theme);
+            }
+            c.close();
+        }
+        return themes;
+    }
 
-        boolean exists = false;
+    /**
+     * Stores the tiny previews of the given themes inside a single transaction, an empty
+     * array marks a theme that has none
+     */
+    public void setTinyPreviews(Collection<ThemeSummary> themes) {
+        ContentValues values = new ContentValues();
+        database.beginTransaction();
+        try {
+            for (ThemeSummary theme : themes) {
+                values.put(ThemeSQLiteHelper.COLUMN_TINY_PREVIEW, theme.getTinyPreview());
+                database.update(ThemeSQLiteHelper.TABLE_THEMES, values,
+                        ThemeSQLiteHelper.COLUMN_ID + "=?",
+                        new String[] { String.valueOf(theme.getId()) });
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+    }
+
+    /**
+     * Returns the file name of every indexed theme
+     */
+    public Set<String> getThemeFileNames() {
+        Set<String> fileNames = new HashSet<String>();
+        Cursor c = database.query(ThemeSQLiteHelper.TABLE_THEMES,
+                new String[] { ThemeSQLiteHelper.COLUMN_THEME_FILE_NAME },
+                null, null, null, null, null);
         if (c != null) {
-            exists = c.getCount() > 0;
+            while (c.moveToNext())
+                fileNames.add(c.getString(0));
             c.close();
         }
-        return exists;
+        return fileNames;
+    }
+
+    public boolean entryExists(String themeId) {
+        return DatabaseUtils.queryNumEntries(database, ThemeSQLiteHelper.TABLE_THEMES,
+                ThemeSQLiteHelper.COLUMN_THEME_FILE_NAME + "=?", new String[] { themeId }) > 0;
     }
 
     public boolean entryIsOlder(String themeId, long lastModified) {
-        Cursor c = database.query(ThemeSQLiteHelper.TABLE_THEMES, allColumns,
-                ThemeSQLiteHelper.COLUMN_THEME_FILE_NAME + "='" + themeId + "'",
-                null, null, null, null);
+        Cursor c = database.query(ThemeSQLiteHelper.TABLE_THEMES,
+                new String[] { ThemeSQLiteHelper.COLUMN_LAST_MODIFIED },
+                ThemeSQLiteHelper.COLUMN_THEME_FILE_NAME + "=?", new String[] { themeId },
+                null, null, null);
         boolean isOlder = false;
 
         if (c != null) {
-            if (c.getCount() > 0) {
-                c.moveToFirst();
-                String modified = c.getString(c.getColumnIndex(ThemeSQLiteHelper.COLUMN_LAST_MODIFIED));
-                if (modified == null || lastModified > Long.parseLong(modified))
-                    isOlder = true;
-            }
+            if (c.moveToFirst())
+                isOlder = lastModified > c.getLong(0);
             c.close();
         }
         return isOlder;
@@ -153,8 +332,8 @@ public class ThemesDataSource {
         Theme theme = null;
 
         Cursor c = database.query(ThemeSQLiteHelper.TABLE_THEMES, allColumns,
-                ThemeSQLiteHelper.COLUMN_ID + "='" + id + "'",
-                null, null, null, null);
+                ThemeSQLiteHelper.COLUMN_ID + "=?",
+                new String[] { String.valueOf(id) }, null, null, null);
 
         if (c != null) {
             if (c.getCount() > 0) {
@@ -163,160 +342,137 @@ public class ThemesDataSource {
             }
             c.close();
         }
+        if (theme != null)
+            theme.setPreviewIndex(getPreviewIndex(theme.getId()));
         return theme;
     }
 
-    public List<Theme> getAllThemes() {
-        List<Theme> themes = new ArrayList<Theme>();
+    public Theme getThemeByFileName(String fileName) {
+        Theme theme = null;
 
-        Cursor cursor = database.query(ThemeSQLiteHelper.TABLE_THEMES,
-                allColumns, null, null, null, null,
-                ThemeSQLiteHelper.COLUMN_IS_COMPLETE + " DESC");
+        Cursor c = database.query(ThemeSQLiteHelper.TABLE_THEMES, allColumns,
+                ThemeSQLiteHelper.COLUMN_THEME_FILE_NAME + "=?",
+                new String[] { fileName }, null, null, null);
 
-        cursor.moveToFirst();
-        while (!cursor.isAfterLast()) {
-            Theme theme = cursorToTheme(cursor);
-            themes.add(theme);
-            cursor.moveToNext();
+        if (c != null) {
+            if (c.getCount() > 0) {
+                c.moveToFirst();
+                theme = cursorToTheme(c);
+            }
+            c.close();
         }
-        // Make sure to close the cursor
-        cursor.close();
-        return themes;
+        if (theme != null)
+            theme.setPreviewIndex(getPreviewIndex(theme.getId()));
+        return theme;
     }
 
-    public List<Theme> getCompleteThemes() {
-        List<Theme> themes = new ArrayList<Theme>();
-
+    /**
+     * Streams summaries of the themes matching query.  The caller must close the list.
+     */
+    public ThemeSummaryList querySummaries(ThemeQuery query) {
         Cursor cursor = database.query(ThemeSQLiteHelper.TABLE_THEMES,
-                allColumns, ThemeSQLiteHelper.COLUMN_IS_COMPLETE + "=1",
-                null, null, null, null);
-
-        cursor.moveToFirst();
-        while (!cursor.isAfterLast()) {
-            Theme theme = cursorToTheme(cursor);
-            themes.add(theme);
-            cursor.moveToNext();
-        }
-        // Make sure to close the cursor
-        cursor.close();
-        return themes;
+                summaryColumns(query), query.getSelection(), null, null, null,
+                query.getOrderBy(), query.getLimitClause());
+        return new ThemeSummaryList(cursor, query.getPreviewTypes());
     }
 
-    public List<Theme> getIconThemes() {
-        List<Theme> themes = new ArrayList<Theme>();
-
+    /**
+     * Streams summaries, with the preview columns of query, of the themes with the given
+     * ids in no particular order.  Ids of deleted themes are skipped.  The caller must
+     * close the list.
+     */
+    public ThemeSummaryList querySummaries(ThemeQuery query, long[] ids) {
+        StringBuilder selection = new StringBuilder(ThemeSQLiteHelper.COLUMN_ID + " IN (");
+        for (int i = 0; i < ids.length; i++)
+            selection.append(i == 0 ? "" : ",").append(ids[i]);
+        selection.append(")");
         Cursor cursor = database.query(ThemeSQLiteHelper.TABLE_THEMES,
-                allColumns, ThemeSQLiteHelper.COLUMN_HAS_ICONS + "='1'",
-                null, null, null, null);
-
-        cursor.moveToFirst();
-        while (!cursor.isAfterLast()) {
-            Theme theme = cursorToTheme(cursor);
-            themes.add(theme);
-            cursor.moveToNext();
-        }
-        // Make sure to close the cursor
-        cursor.close();
-        return themes;
+                summaryColumns(query), selection.toString(), null, null, null, null);
+        return new ThemeSummaryList(cursor, query.getPreviewTypes());
     }
 
-    public List<Theme> getWallpaperThemes() {
-        List<Theme> themes = new ArrayList<Theme>();
-
-        Cursor cursor = database.query(ThemeSQLiteHelper.TABLE_THEMES,
-                allColumns, ThemeSQLiteHelper.COLUMN_HAS_WALLPAPER + "='1'",
-                null, null, null, null);
-
-        cursor.moveToFirst();
-        while (!cursor.isAfterLast()) {
-            Theme theme = cursorToTheme(cursor);
-            themes.add(theme);
-            cursor.moveToNext();
-        }
-        // Make sure to close the cursor
-        cursor.close();
-        return themes;
+    /**
+     * Returns the ids of the themes matching query in query order
+     */
+    public long[] queryThemeIds(ThemeQuery query) {
+        Cursor c = database.query(ThemeSQLiteHelper.TABLE_THEMES,
+                new String[] { ThemeSQLiteHelper.COLUMN_ID }, query.getSelection(), null,
+                null, null, query.getOrderBy(), query.getLimitClause());
+        if (c == null)
+            return new long[0];
+        long[] ids = new long[c.getCount()];
+        for (int i = 0; c.moveToNext(); i++)
+            ids[i] = c.getLong(0);
+        c.close();
+        return ids;
     }
 
-    public List<Theme> getLockscreenWallpaperThemes() {
-        List<Theme> themes = new ArrayList<Theme>();
-
-        Cursor cursor = database.query(ThemeSQLiteHelper.TABLE_THEMES,
-                allColumns, ThemeSQLiteHelper.COLUMN_HAS_LOCK_WALLPAPER + "='1'",
-                null, null, null, null);
-
-        cursor.moveToFirst();
-        while (!cursor.isAfterLast()) {
-            Theme theme = cursorToTheme(cursor);
-            themes.add(theme);
-            cursor.moveToNext();
-        }
-        // Make sure to close the cursor
-        cursor.close();
-        return themes;
-    }
-
-    public List<Theme> getSystemUIThemes() {
-        List<Theme> themes = new ArrayList<Theme>();
-
-        Cursor cursor = database.query(ThemeSQLiteHelper.TABLE_THEMES,
-                allColumns, ThemeSQLiteHelper.COLUMN_HAS_SYSTEMUI + "='1'",
-                null, null, null, null);
-
-        cursor.moveToFirst();
-        while (!cursor.isAfterLast()) {
-            Theme theme = cursorToTheme(cursor);
-            themes.add(theme);
-            cursor.moveToNext();
+    private static String[] summaryColumns(ThemeQuery query) {
+        int[] previewTypes = query.getPreviewTypes();
+        String[] columns = new String[sSummaryColumns.length + previewTypes.length];
+        System.arraycopy(sSummaryColumns, 0, columns, 0, sSummaryColumns.length);
+        for (int i = 0; i < previewTypes.length; i++) {
+            // the first preview of a type comes straight off the preview table's key
+            columns[sSummaryColumns.length + i] = "(SELECT "
+                    + ThemeSQLiteHelper.COLUMN_PREVIEW_ENTRY + " FROM "
+                    + ThemeSQLiteHelper.TABLE_PREVIEWS + " WHERE "
+                    + ThemeSQLiteHelper.COLUMN_PREVIEW_THEME_ID + "="
+                    + ThemeSQLiteHelper.TABLE_THEMES + "." + ThemeSQLiteHelper.COLUMN_ID
+                    + " AND " + ThemeSQLiteHelper.COLUMN_PREVIEW_TYPE + "=" + previewTypes[i]
+                    + " AND " + ThemeSQLiteHelper.COLUMN_PREVIEW_ORDINAL + "=0) AS "
+                    + ThemeSQLiteHelper.COLUMN_FIRST_PREVIEW_PREFIX + previewTypes[i];
         }
-        // Make sure to close the cursor
-        cursor.close();
-        return themes;
+        return columns;
     }
 
-    public List<Theme> getFrameworkThemes() {
-        List<Theme> themes = new ArrayList<Theme>();
-
-        Cursor cursor = database.query(ThemeSQLiteHelper.TABLE_THEMES,
-                allColumns, ThemeSQLiteHelper.COLUMN_HAS_FRAMEWORK + "='1'",
-                null, null, null, null);
-
-        cursor.moveToFirst();
-        while (!cursor.isAfterLast()) {
-            Theme theme = cursorToTheme(cursor);
-            themes.add(theme);
-            cursor.moveToNext();
+    /**
+     * Reads the previews of the theme with the given id grouped by
+     * PreviewHelper.PREVIEW_TYPE_*, each group sorted
+     */
+    public String[][] getPreviewIndex(long themeId) {
+        List<List<String>> groups = new ArrayList<List<String>>(PreviewHelper.PREVIEW_TYPE_COUNT);
+        for (int i = 0; i < PreviewHelper.PREVIEW_TYPE_COUNT; i++)
+            groups.add(null);
+        Cursor c = database.query(ThemeSQLiteHelper.TABLE_PREVIEWS,
+                new String[] { ThemeSQLiteHelper.COLUMN_PREVIEW_TYPE,
+                        ThemeSQLiteHelper.COLUMN_PREVIEW_ENTRY },
+                ThemeSQLiteHelper.COLUMN_PREVIEW_THEME_ID + "=?",
+                new String[] { String.valueOf(themeId) }, null, null,
+                ThemeSQLiteHelper.COLUMN_PREVIEW_TYPE + ", "
+                        + ThemeSQLiteHelper.COLUMN_PREVIEW_ORDINAL);
+        if (c != null) {
+            while (c.moveToNext()) {
+                int type = c.getInt(0);
+                if (type < 0 || type >= PreviewHelper.PREVIEW_TYPE_COUNT)
+                    continue;
+                List<String> group = groups.get(type);
+                if (group == null) {
+                    group = new ArrayList<String>();
+                    groups.set(type, group);
+                }
+                group.add(c.getString(1));
+            }
+            c.close();
         }
-        // Make sure to close the cursor
-        cursor.close();
-        return themes;
-    }
 
-    public List<Theme> getRingtoneThemes() {
-        List<Theme> themes = new ArrayList<Theme>();
-
-        Cursor cursor = database.query(ThemeSQLiteHelper.TABLE_THEMES,
-                allColumns, ThemeSQLiteHelper.COLUMN_HAS_RINGTONE + "='1' OR " +
-                ThemeSQLiteHelper.COLUMN_HAS_NOTIFICATION + "='1'",
-                null, null, null, null);
-
-        cursor.moveToFirst();
-        while (!cursor.isAfterLast()) {
-            Theme theme = cursorToTheme(cursor);
-            themes.add(theme);
-            cursor.moveToNext();
+        String[][] index = new String[PreviewHelper.PREVIEW_TYPE_COUNT][];
+        for (int i = 0; i < index.length; i++) {
+            List<String> group = groups.get(i);
+            if (group != null)
+                index[i] = group.toArray(new String[group.size()]);
         }
-        // Make sure to close the cursor
-        cursor.close();
-        return themes;
+        return index;
     }
 
-    public List<Theme> getBootanimationThemes() {
+    /**
+     * Returns fully populated themes matching query
+     */
+    public List<Theme> queryThemes(ThemeQuery query) {
         List<Theme> themes = new ArrayList<Theme>();
 
         Cursor cursor = database.query(ThemeSQLiteHelper.TABLE_THEMES,
-                allColumns, ThemeSQLiteHelper.COLUMN_HAS_BOOTANIMATION + "='1'",
-                null, null, null, null);
+                allColumns, query.getSelection(), null, null, null,
+                query.getOrderBy(), query.getLimitClause());
 
         cursor.moveToFirst();
         while (!cursor.isAfterLast()) {
@@ -329,76 +485,102 @@ public class ThemesDataSource {
         return themes;
     }
 
-    public List<Theme> getMmsThemes() {
-        List<Theme> themes = new ArrayList<Theme>();
-
-        Cursor cursor = database.query(ThemeSQLiteHelper.TABLE_THEMES,
-                allColumns, ThemeSQLiteHelper.COLUMN_HAS_MMS + "='1'",
-                null, null, null, null);
-
-        cursor.moveToFirst();
-        while (!cursor.isAfterLast()) {
-            Theme theme = cursorToTheme(cursor);
-            themes.add(theme);
-            cursor.moveToNext();
+    /**
+     * Searches title, author and designer for themes whose words start with the words
+     * in text.  Results are ranked with title matches weighted above author and designer.
+     * @param limit maximum number of results, or -1 for all of them
+     */
+    public List<ThemeSummary> searchThemes(String text, int limit) {
+        List<ThemeSummary> results = new ArrayList<ThemeSummary>();
+        String match = buildMatchQuery(text);
+        if (match == null)
+            return results;
+
+        Cursor c = database.rawQuery("SELECT docid, matchinfo("
+                + ThemeSQLiteHelper.TABLE_THEMES_SEARCH + ", 'pcx') FROM "
+                + ThemeSQLiteHelper.TABLE_THEMES_SEARCH + " WHERE "
+                + ThemeSQLiteHelper.TABLE_THEMES_SEARCH + " MATCH ?", new String[] { match });
+        if (c == null)
+            return results;
+        final Map<Long, Float> ranks = new HashMap<Long, Float>(c.getCount());
+        while (c.moveToNext())
+            ranks.put(c.getLong(0), rank(c.getBlob(1)));
+        c.close();
+        if (ranks.size() == 0)
+            return results;
+
+        StringBuilder ids = new StringBuilder();
+        for (Long id : ranks.keySet()) {
+            if (ids.length() > 0)
+                ids.append(',');
+            ids.append(id);
         }
-        // Make sure to close the cursor
-        cursor.close();
-        return themes;
+        c = database.query(ThemeSQLiteHelper.TABLE_THEMES, sSummaryColumns,
+                ThemeSQLiteHelper.COLUMN_ID + " IN (" + ids + ")", null, null, null, null);
+        ThemeSummaryList summaries = new ThemeSummaryList(c);
+        results.addAll(summaries);
+        summaries.close();
+
+        Collections.sort(results, new Comparator<ThemeSummary>() {
+            @Override
+            public int compare(ThemeSummary lhs, ThemeSummary rhs) {
+                int result = Float.compare(ranks.get(rhs.getId()), ranks.get(lhs.getId()));
+                if (result == 0 && lhs.getTitle() != null && rhs.getTitle() != null)
+                    result = lhs.getTitle().compareToIgnoreCase(rhs.getTitle());
+                return result;
+            }
+        });
+        if (limit >= 0 && results.size() > limit)
+            results = new ArrayList<ThemeSummary>(results.subList(0, limit));
+        return results;
     }
 
-    public List<Theme> getContactsThemes() {
-        List<Theme> themes = new ArrayList<Theme>();
-
-        Cursor cursor = database.query(ThemeSQLiteHelper.TABLE_THEMES,
-                allColumns, ThemeSQLiteHelper.COLUMN_HAS_CONTACTS + "='1'",
-                null, null, null, null);
-
-        cursor.moveToFirst();
-        while (!cursor.isAfterLast()) {
-            Theme theme = cursorToTheme(cursor);
-            themes.add(theme);
-            cursor.moveToNext();
+    /**
+     * Turns free text into an FTS query that prefix matches every word, or null if
+     * there is nothing to search for
+     */
+    static String buildMatchQuery(String text) {
+        if (text == null)
+            return null;
+        StringBuilder match = new StringBuilder();
+        StringBuilder term = new StringBuilder();
+        for (int i = 0; i <= text.length(); i++) {
+            char ch = i < text.length() ? text.charAt(i) : ' ';
+            if (Character.isLetterOrDigit(ch)) {
+                term.append(Character.toLowerCase(ch));
+            } else if (term.length() > 0) {
+                if (match.length() > 0)
+                    match.append(' ');
+                match.append(term).append('*');
+                term.setLength(0);
+            }
         }
-        // Make sure to close the cursor
-        cursor.close();
-        return themes;
+        return match.length() > 0 ? match.toString() : null;
     }
 
-    public List<Theme> getDialerThemes() {
-        List<Theme> themes = new ArrayList<Theme>();
-
-        Cursor cursor = database.query(ThemeSQLiteHelper.TABLE_THEMES,
-                allColumns, ThemeSQLiteHelper.COLUMN_HAS_DIALER + "='1'",
-                null, null, null, null);
-
-        cursor.moveToFirst();
-        while (!cursor.isAfterLast()) {
-            Theme theme = cursorToTheme(cursor);
-            themes.add(theme);
-            cursor.moveToNext();
+    /**
+     * Scores a row from its matchinfo 'pcx' blob, hits in rarer phrases and in the
+     * title count for more
+     */
+    private static float rank(byte[] matchInfo) {
+        IntBuffer info = ByteBuffer.wrap(matchInfo).order(ByteOrder.nativeOrder()).asIntBuffer();
+        int phrases = info.get(0);
+        int columns = info.get(1);
+        float score = 0;
+        for (int p = 0; p < phrases; p++) {
+            for (int col = 0; col < columns && col < sSearchWeights.length; col++) {
+                int base = 2 + (p * columns + col) * 3;
+                int hitsInRow = info.get(base);
+                int hitsInAllRows = info.get(base + 1);
+                if (hitsInRow > 0)
+                    score += sSearchWeights[col] * hitsInRow / (float) hitsInAllRows;
+            }
         }
-        // Make sure to close the cursor
-        cursor.close();
-        return themes;
+        return score;
     }
 
-    public List<Theme> getFontThemes() {
-        List<Theme> themes = new ArrayList<Theme>();
-
-        Cursor cursor = database.query(ThemeSQLiteHelper.TABLE_THEMES,
-                allColumns, ThemeSQLiteHelper.COLUMN_HAS_FONT + "='1'",
-                null, null, null, null);
-
-        cursor.moveToFirst();
-        while (!cursor.isAfterLast()) {
-            Theme theme = cursorToTheme(cursor);
-            themes.add(theme);
-            cursor.moveToNext();
-        }
-        // Make sure to close the cursor
-        cursor.close();
-        return themes;
+    public List<Theme> getAllThemes() {
+        return queryThemes(new ThemeQuery().setOrder(ThemeQuery.ORDER_COMPLETE_FIRST));
     }
 
     private Theme cursorToTheme(Cursor cursor) {
@@ -407,8 +589,8 @@ public class ThemesDataSource {
                 cursor.getColumnIndexOrThrow(ThemeSQLiteHelper.COLUMN_ID)));
         theme.setFileName(cursor.getString(
                 cursor.getColumnIndexOrThrow(ThemeSQLiteHelper.COLUMN_THEME_FILE_NAME)));
-        theme.setLastModified(Long.getLong(
-                cursor.getString(cursor.getColumnIndexOrThrow(ThemeSQLiteHelper.COLUMN_LAST_MODIFIED)), 0));
+        theme.setLastModified(cursor.getLong(
+                cursor.getColumnIndexOrThrow(ThemeSQLiteHelper.COLUMN_LAST_MODIFIED)));
         theme.setTitle(cursor.getString(
                 cursor.getColumnIndexOrThrow(ThemeSQLiteHelper.COLUMN_THEME_TITLE)));
         theme.setAuthor(cursor.getString(
@@ -425,32 +607,14 @@ public class ThemesDataSource {
                 cursor.getColumnIndexOrThrow(ThemeSQLiteHelper.COLUMN_IS_COS_THEME)) == 1);
         theme.setIsDefaultTheme(cursor.getInt(
                 cursor.getColumnIndexOrThrow(ThemeSQLiteHelper.COLUMN_IS_DEFAULT_THEME)) == 1);
-        theme.setHasWallpaper(cursor.getInt(
-                cursor.getColumnIndexOrThrow(ThemeSQLiteHelper.COLUMN_HAS_WALLPAPER)) == 1);
-        theme.setHasIcons(cursor.getInt(
-                cursor.getColumnIndexOrThrow(ThemeSQLiteHelper.COLUMN_HAS_ICONS)) == 1);
-        theme.setHasLockscreenWallpaper(cursor.getInt(
-                cursor.getColumnIndexOrThrow(ThemeSQLiteHelper.COLUMN_HAS_LOCK_WALLPAPER)) == 1);
-        theme.setHasContacts(cursor.getInt(
-                cursor.getColumnIndexOrThrow(ThemeSQLiteHelper.COLUMN_HAS_CONTACTS)) == 1);
-        theme.setHasDialer(cursor.getInt(
-                cursor.getColumnIndexOrThrow(ThemeSQLiteHelper.COLUMN_HAS_DIALER)) == 1);
-        theme.setHasSystemUI(cursor.getInt(
-                cursor.getColumnIndexOrThrow(ThemeSQLiteHelper.COLUMN_HAS_SYSTEMUI)) == 1);
-        theme.setHasFramework(cursor.getInt(
-                cursor.getColumnIndexOrThrow(ThemeSQLiteHelper.COLUMN_HAS_FRAMEWORK)) == 1);
-        theme.setHasRingtone(cursor.getInt(
-                cursor.getColumnIndexOrThrow(ThemeSQLiteHelper.COLUMN_HAS_RINGTONE)) == 1);
-        theme.setHasNotification(cursor.getInt(
-                cursor.getColumnIndexOrThrow(ThemeSQLiteHelper.COLUMN_HAS_NOTIFICATION)) == 1);
-        theme.setHasBootanimation(cursor.getInt(
-                cursor.getColumnIndexOrThrow(ThemeSQLiteHelper.COLUMN_HAS_BOOTANIMATION)) == 1);
-        theme.setHasMms(cursor.getInt(
-                cursor.getColumnIndexOrThrow(ThemeSQLiteHelper.COLUMN_HAS_MMS)) == 1);
-        theme.setHasFont(cursor.getInt(
-                cursor.getColumnIndexOrThrow(ThemeSQLiteHelper.COLUMN_HAS_FONT)) == 1);
+        theme.setComponents(cursor.getInt(
+                cursor.getColumnIndexOrThrow(ThemeSQLiteHelper.COLUMN_COMPONENTS)));
         theme.setIsComplete(cursor.getInt(
                 cursor.getColumnIndexOrThrow(ThemeSQLiteHelper.COLUMN_IS_COMPLETE)) == 1);
+        theme.setMainPreview(cursor.getString(
+                cursor.getColumnIndexOrThrow(ThemeSQLiteHelper.COLUMN_MAIN_PREVIEW)));
+        theme.setTinyPreview(cursor.getBlob(
+                cursor.getColumnIndexOrThrow(ThemeSQLiteHelper.COLUMN_TINY_PREVIEW)));
         theme.setPreviewsList(cursor.getString(
                 cursor.getColumnIndexOrThrow(ThemeSQLiteHelper.COLUMN_PREVIEWS_LIST)));
         return theme;
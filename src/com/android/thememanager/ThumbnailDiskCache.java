@@ -0,0 +1,293 @@
+/*
+ * Copyright (C) 2013 The ChameleonOS Project
+ *
+ * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.thememanager;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Disk cache of grid thumbnails, already scaled to the cell they are shown in, and of
+ * other renditions prepared for the size they are shown at.  Each theme's thumbnails
+ * live in CACHE_DIR/themeName/thumbs so ThemeUtils.deleteThemeCacheDir drops them along
+ * with the rest of the theme's cache.  The total size is capped and the least recently
+ * used thumbnails are deleted first.
+ */
+public final class ThumbnailDiskCache {
+    private static final String TAG = "ThumbnailDiskCache";
+    private static final String THUMBS_DIR = "thumbs";
+    private static final String THUMB_SUFFIX = ".thumb";
+    private static final String TMP_SUFFIX = ".tmp";
+    private static final long MAX_BYTES = 32 * 1024 * 1024;
+    // a single rendition may not push more than this many thumbnails out of the cache
+    public static final long MAX_RENDITION_BYTES = MAX_BYTES / 8;
+    private static final int JPEG_QUALITY = 85;
+
+    private static ThumbnailDiskCache sInstance;
+
+    // -1 until the existing thumbnails have been measured
+    private long mSize = -1;
+    // temporary files older than this were left by a writer that died, mtime is only
+    // kept to the second on some file systems
+    private final long mStaleBefore = System.currentTimeMillis() - 2000;
+
+    public static synchronized ThumbnailDiskCache getInstance() {
+        if (sInstance == null)
+            sInstance = new ThumbnailDiskCache();
+        return sInstance;
+    }
+
+    private ThumbnailDiskCache() {
+    }
+
+    /**
+     * Returns the cached thumbnail of entryName scaled for width x height, or null
+     */
+    public Bitmap get(ThemeSummary theme, String entryName, int width, int height) {
+        File file = getFile(theme, entryName, width, height);
+        if (!file.exists())
+            return null;
+        Bitmap bmp;
+        try {
+            // already scaled, so this decodes at full size and can reuse a pooled bitmap
+            bmp = BitmapDecoder.decode(BitmapDecoder.fromFile(file), 0, 0);
+        } catch (IOException e) {
+            bmp = null;
+        }
+        if (bmp != null)
+            file.setLastModified(System.currentTimeMillis());
+        else
+            remove(file);
+        return bmp;
+    }
+
+    /**
+     * Stores bmp as the thumbnail of entryName for width x height
+     */
+    public void put(ThemeSummary theme, String entryName, int width, int height, Bitmap bmp) {
+        File file = getFile(theme, entryName, width, height);
+        File tmp = newTempFile(file);
+        if (tmp == null)
+            return;
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(tmp);
+            // previews without alpha compress far smaller as jpeg
+            if (bmp.hasAlpha())
+                bmp.compress(Bitmap.CompressFormat.PNG, 100, out);
+            else
+                bmp.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out);
+            out.close();
+            out = null;
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to write thumbnail " + file, e);
+            tmp.delete();
+            return;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+        commit(tmp, file);
+    }
+
+    /**
+     * Returns the cached rendition of entryName for width x height, or null.  Renditions
+     * are whole files derived from an entry, such as a downscaled boot animation, and
+     * count against the same budget as thumbnails, each at most MAX_RENDITION_BYTES.
+     */
+    public File getRendition(ThemeSummary theme, String entryName, int width, int height) {
+        File file = getFile(theme, entryName, width, height);
+        if (!file.exists())
+            return null;
+        file.setLastModified(System.currentTimeMillis());
+        return file;
+    }
+
+    /**
+     * Returns the temporary file a rendition is written to before putRendition, or null
+     * if the cache directory can not be created
+     */
+    public File newRenditionFile(ThemeSummary theme, String entryName, int width, int height) {
+        return newTempFile(getFile(theme, entryName, width, height));
+    }
+
+    /**
+     * Moves tmp, as returned by newRenditionFile, into place as the rendition of entryName.
+     * A rendition larger than MAX_RENDITION_BYTES is deleted instead.
+     */
+    public boolean putRendition(ThemeSummary theme, String entryName, int width, int height,
+            File tmp) {
+        if (tmp.length() > MAX_RENDITION_BYTES) {
+            tmp.delete();
+            return false;
+        }
+        return commit(tmp, getFile(theme, entryName, width, height));
+    }
+
+    /**
+     * Creates a uniquely named temporary file next to file, so concurrent writers of the
+     * same entry never write into each other's file
+     */
+    private static File newTempFile(File file) {
+        File dir = file.getParentFile();
+        if (!dir.exists() && !dir.mkdirs())
+            return null;
+        try {
+            return File.createTempFile(file.getName(), TMP_SUFFIX, dir);
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to create temporary file for " + file, e);
+            return null;
+        }
+    }
+
+    private synchronized boolean commit(File tmp, File file) {
+        ensureSize();
+        if (file.exists())
+            mSize -= file.length();
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            return false;
+        }
+        mSize += file.length();
+        if (mSize > MAX_BYTES)
+            trim(MAX_BYTES * 3 / 4);
+        return true;
+    }
+
+    /**
+     * Deletes every thumbnail of the theme with the given file name
+     */
+    public synchronized void invalidate(String themeName) {
+        File[] files = new File(getThemeDir(themeName), THUMBS_DIR).listFiles();
+        if (files == null)
+            return;
+        for (File f : files)
+            remove(f);
+    }
+
+    private synchronized void remove(File file) {
+        long length = file.length();
+        if (file.delete() && mSize >= 0)
+            mSize = Math.max(0, mSize - length);
+    }
+
+    private void ensureSize() {
+        if (mSize >= 0)
+            return;
+        createCacheRoot();
+        // left behind by writes that never committed, nothing else would delete them
+        for (File f : listFiles(TMP_SUFFIX)) {
+            if (f.lastModified() < mStaleBefore)
+                f.delete();
+        }
+        long size = 0;
+        for (File f : listFiles(THUMB_SUFFIX))
+            size += f.length();
+        mSize = size;
+    }
+
+    /**
+     * Deletes the least recently used thumbnails until the cache is at most maxBytes
+     */
+    private void trim(long maxBytes) {
+        List<File> files = listFiles(THUMB_SUFFIX);
+        File[] sorted = files.toArray(new File[files.size()]);
+        Arrays.sort(sorted, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long l = lhs.lastModified();
+                long r = rhs.lastModified();
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+        for (int i = 0; i < sorted.length && mSize > maxBytes; i++)
+            remove(sorted[i]);
+    }
+
+    /**
+     * Lists the files ending in suffix in every theme's thumbs directory
+     */
+    private static List<File> listFiles(String suffix) {
+        List<File> thumbs = new ArrayList<File>();
+        File[] themeDirs = new File(Globals.CACHE_DIR).listFiles();
+        if (themeDirs == null)
+            return thumbs;
+        for (File themeDir : themeDirs) {
+            File[] files = new File(themeDir, THUMBS_DIR).listFiles();
+            if (files == null)
+                continue;
+            for (File f : files) {
+                if (f.getName().endsWith(suffix))
+                    thumbs.add(f);
+            }
+        }
+        return thumbs;
+    }
+
+    /**
+     * Keeps the media scanner out of the cache since it lives on external storage
+     */
+    private static void createCacheRoot() {
+        ThemeUtils.createCacheDir();
+        File noMedia = new File(Globals.CACHE_DIR, ".nomedia");
+        if (!noMedia.exists()) {
+            try {
+                noMedia.createNewFile();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    private static File getThemeDir(String themeName) {
+        return new File(Globals.CACHE_DIR, themeName);
+    }
+
+    private static File getFile(ThemeSummary theme, String entryName, int width, int height) {
+        String key = theme.getThemePath() + '@' + theme.getLastModified() + '/' + entryName
+                + '#' + width + 'x' + height;
+        return new File(new File(getThemeDir(theme.getFileName()), THUMBS_DIR),
+                hash(key) + THUMB_SUFFIX);
+    }
+
+    private static String hash(String key) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            byte[] bytes = digest.digest(key.getBytes());
+            StringBuilder sb = new StringBuilder(bytes.length * 2);
+            for (byte b : bytes) {
+                sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+                sb.append(Character.forDigit(b & 0xf, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            return Integer.toHexString(key.hashCode());
+        }
+    }
+}
@@ -0,0 +1,277 @@
+/*
+ * Copyright (C) 2013 The ChameleonOS Project
+ *
+ * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.thememanager;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Open theme archives shared between the preview loaders and the detail screens, so
+ * the central directory of a theme is only parsed once while it is being looked at.
+ *
+ * Archives are reference counted like the bitmaps in the BitmapPool: every acquire must
+ * be matched by a release.  Archives nobody holds stay open for IDLE_TIMEOUT and are
+ * closed least recently used first once more than MAX_OPEN are open.  An archive whose
+ * file changed on disk is never handed out again and is closed once released.
+ */
+public final class ZipFileCache {
+    // open archive budget, archives in use are never closed to stay within it
+    private static final int MAX_OPEN = 6;
+    private static final long IDLE_TIMEOUT = 30 * 1000;
+
+    private static ZipFileCache sInstance;
+
+    // keyed by path, least recently used first
+    private final LinkedHashMap<String, Archive> mArchives =
+            new LinkedHashMap<String, Archive>(MAX_OPEN, 0.75f, true);
+    // every archive handed out and not yet released, including stale ones
+    private final Map<ZipFile, Archive> mHeld = new IdentityHashMap<ZipFile, Archive>();
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private boolean mTrimScheduled = false;
+
+    private static final class Archive {
+        final String path;
+        final ZipFile zip;
+        final long lastModified;
+        final long length;
+        int refs;
+        long idleSince;
+        boolean stale;
+
+        Archive(String path, ZipFile zip, long lastModified, long length) {
+            this.path = path;
+            this.zip = zip;
+            this.lastModified = lastModified;
+            this.length = length;
+        }
+    }
+
+    public static synchronized ZipFileCache getInstance() {
+        if (sInstance == null)
+            sInstance = new ZipFileCache();
+        return sInstance;
+    }
+
+    private ZipFileCache() {
+    }
+
+    /**
+     * Returns the open archive at path, the caller must hand it back with release
+     */
+    public ZipFile acquire(String path) throws IOException {
+        File file = new File(path);
+        long lastModified = file.lastModified();
+        long length = file.length();
+        synchronized (this) {
+            Archive archive = mArchives.get(path);
+            if (archive != null) {
+                if (archive.lastModified == lastModified && archive.length == length) {
+                    archive.refs++;
+                    return archive.zip;
+                }
+                // the theme was replaced, let current holders finish with the old file
+                discard(archive);
+            }
+        }
+
+        // parse outside the lock, another thread may open the same archive meanwhile
+        ZipFile zip = new ZipFile(file);
+        synchronized (this) {
+            Archive archive = mArchives.get(path);
+            if (archive != null && archive.lastModified == lastModified
+                    && archive.length == length) {
+                closeQuietly(zip);
+                archive.refs++;
+                return archive.zip;
+            }
+            if (archive != null)
+                discard(archive);
+            archive = new Archive(path, zip, lastModified, length);
+            archive.refs = 1;
+            mArchives.put(path, archive);
+            mHeld.put(zip, archive);
+            trimToBudget();
+            return zip;
+        }
+    }
+
+    /**
+     * Drops one holder of zip, it stays open for a while in case it is needed again
+     */
+    public synchronized void release(ZipFile zip) {
+        if (zip == null)
+            return;
+        Archive archive = mHeld.get(zip);
+        if (archive == null) {
+            closeQuietly(zip);
+            return;
+        }
+        if (--archive.refs > 0)
+            return;
+        if (archive.stale) {
+            mHeld.remove(zip);
+            closeQuietly(zip);
+            return;
+        }
+        archive.idleSince = SystemClock.uptimeMillis();
+        trimToBudget();
+        scheduleTrim();
+    }
+
+    /**
+     * Opens entryName of the archive at path.  The archive is held until the returned
+     * stream is closed.  Returns null if there is no such entry.
+     */
+    public InputStream openEntry(String path, String entryName) throws IOException {
+        final ZipFile zip = acquire(path);
+        try {
+            ZipEntry entry = zip.getEntry(entryName);
+            if (entry != null) {
+                return new FilterInputStream(zip.getInputStream(entry)) {
+                    private boolean mClosed = false;
+
+                    @Override
+                    public void close() throws IOException {
+                        if (mClosed)
+                            return;
+                        mClosed = true;
+                        try {
+                            super.close();
+                        } finally {
+                            release(zip);
+                        }
+                    }
+                };
+            }
+        } catch (IOException e) {
+            release(zip);
+            throw e;
+        }
+        release(zip);
+        return null;
+    }
+
+    /**
+     * Closes the archive at path as soon as nobody holds it, used when a theme is deleted
+     */
+    public synchronized void invalidate(String path) {
+        Archive archive = mArchives.get(path);
+        if (archive != null)
+            discard(archive);
+    }
+
+    /**
+     * Closes every archive nobody holds
+     */
+    public synchronized void trimIdle() {
+        Iterator<Archive> it = mArchives.values().iterator();
+        while (it.hasNext()) {
+            Archive archive = it.next();
+            if (archive.refs == 0) {
+                it.remove();
+                mHeld.remove(archive.zip);
+                closeQuietly(archive.zip);
+            }
+        }
+    }
+
+    public synchronized int getOpenCount() {
+        return mHeld.size();
+    }
+
+    private void discard(Archive archive) {
+        mArchives.remove(archive.path);
+        archive.stale = true;
+        if (archive.refs == 0) {
+            mHeld.remove(archive.zip);
+            closeQuietly(archive.zip);
+        }
+    }
+
+    /**
+     * Closes idle archives, least recently used first, until the budget is met
+     */
+    private void trimToBudget() {
+        Iterator<Archive> it = mArchives.values().iterator();
+        while (mHeld.size() > MAX_OPEN && it.hasNext()) {
+            Archive archive = it.next();
+            if (archive.refs == 0) {
+                it.remove();
+                mHeld.remove(archive.zip);
+                closeQuietly(archive.zip);
+            }
+        }
+    }
+
+    private void trimExpired() {
+        long now = SystemClock.uptimeMillis();
+        long nextExpiry = Long.MAX_VALUE;
+        Iterator<Archive> it = mArchives.values().iterator();
+        while (it.hasNext()) {
+            Archive archive = it.next();
+            if (archive.refs != 0)
+                continue;
+            long expiry = archive.idleSince + IDLE_TIMEOUT;
+            if (expiry <= now) {
+                it.remove();
+                mHeld.remove(archive.zip);
+                closeQuietly(archive.zip);
+            } else {
+                nextExpiry = Math.min(nextExpiry, expiry);
+            }
+        }
+        if (nextExpiry != Long.MAX_VALUE) {
+            mTrimScheduled = true;
+            mHandler.postAtTime(mTrimRunnable, nextExpiry);
+        }
+    }
+
+    private void scheduleTrim() {
+        if (mTrimScheduled)
+            return;
+        mTrimScheduled = true;
+        mHandler.postDelayed(mTrimRunnable, IDLE_TIMEOUT);
+    }
+
+    private final Runnable mTrimRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (ZipFileCache.this) {
+                mTrimScheduled = false;
+                trimExpired();
+            }
+        }
+    };
+
+    private static void closeQuietly(ZipFile zip) {
+        try {
+            zip.close();
+        } catch (IOException e) {
+        }
+    }
+}
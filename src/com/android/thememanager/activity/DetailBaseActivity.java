@@ -20,13 +20,9 @@ import android.app.Dialog;
 import android.app.ProgressDialog;
 import android.content.Context;
 import android.content.pm.ActivityInfo;
-import android.content.res.Resources;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.Paint;
 import android.graphics.drawable.BitmapDrawable;
-import android.graphics.drawable.Drawable;
-import android.os.AsyncTask;
 import android.os.Handler;
 import android.support.v4.view.PagerAdapter;
 import android.support.v4.view.ViewPager;
@@ -36,13 +32,17 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.widget.ImageView;
 
+import com.android.thememanager.BitmapDecoder;
+import com.android.thememanager.BitmapPool;
 import com.android.thememanager.Globals;
+import com.android.thememanager.PreviewCache;
+import com.android.thememanager.PreviewExecutor;
 import com.android.thememanager.R;
 import com.android.thememanager.Theme;
+import com.android.thememanager.ZipFileCache;
 import com.android.thememanager.widget.CoverFlowPageTransformer;
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
@@ -55,6 +55,11 @@ abstract public class DetailBaseActivity extends Activity {
 
     protected static final int DIALOG_PROGRESS = 0;
 
+    // pages kept on either side of the current one, see ViewPager.setOffscreenPageLimit
+    private static final int PAGER_OFFSCREEN_LIMIT = 3;
+    // placeholders are decoded at this fraction of the page height
+    private static final int PLACEHOLDER_SCALE = 8;
+
     protected PagerContainer mPreviews = null;
     protected String[] mPreviewList = null;
     protected ImageAdapter mAdapter = null;
@@ -67,7 +72,6 @@ abstract public class DetailBaseActivity extends Activity {
         super.onDestroy();
         mAdapter.destroyImages();
         mAdapter = null;
-        System.gc();
     }
 
     protected void setupPager() {
@@ -77,7 +81,7 @@ abstract public class DetailBaseActivity extends Activity {
         pager.setAdapter(mAdapter);
         //Necessary or the pager will only have one extra page to show
         // make this at least however many pages you can see
-        pager.setOffscreenPageLimit(3);
+        pager.setOffscreenPageLimit(PAGER_OFFSCREEN_LIMIT);
         //If hardware acceleration is enabled, you should also remove
         // clipping on the pager for its children.
         pager.setClipChildren(false);
@@ -96,25 +100,39 @@ abstract public class DetailBaseActivity extends Activity {
         setProgressBarIndeterminateVisibility(true);
     }
 
+    /**
+     * Pager pages are decoded on the PreviewExecutor, the current page first and then its
+     * neighbours within the offscreen page limit, nearest first.  A page shows a low
+     * resolution placeholder until its full preview is decoded and hands its bitmaps back
+     * to the BitmapPool when the pager destroys it.
+     */
     public class ImageAdapter extends PagerAdapter {
         private Context mContext;
 
         private ImageView[] mImages;
+        // bitmap shown by each page, retained for as long as the page is attached
+        private Bitmap[] mBitmaps;
+        // whether mBitmaps holds the full preview rather than the placeholder
+        private boolean[] mFull;
+        private boolean[] mAttached;
+        private PageLoader[] mLoaders;
+        private int mPageHeight = 0;
+        private int mCurrentPage = -1;
+        private boolean mDestroyed = false;
 
         public ImageAdapter(Context c) {
             mContext = c;
             if (mImages == null) {
                 mImages = new ImageView[mPreviewList.length];
             }
+            mBitmaps = new Bitmap[mImages.length];
+            mFull = new boolean[mImages.length];
+            mAttached = new boolean[mImages.length];
+            mLoaders = new PageLoader[mImages.length];
             for (int i = 0; i < mImages.length; i++) {
                 mImages[i] = new ImageView(c);
                 mImages[i].setScaleType(ImageView.ScaleType.FIT_CENTER);
             }
-            preloadImages();
-        }
-
-        private void preloadImages() {
-            (new PreviewLoaderAsyncTask()).execute();
         }
 
         @Override
@@ -127,11 +145,29 @@ abstract public class DetailBaseActivity extends Activity {
             mImages[position].setLayoutParams(new ViewGroup.LayoutParams(ViewGroup.LayoutParams.WRAP_CONTENT,
                     ViewGroup.LayoutParams.MATCH_PARENT));
             container.addView(mImages[position]);
+            mAttached[position] = true;
+            // pages added while swiping within the same current page still need loading
+            if (mCurrentPage >= 0)
+                loadPage(position, mCurrentPage);
             return mImages[position];
 
             //return mImages[position];
         }
 
+        @Override
+        public void setPrimaryItem(ViewGroup container, int position, Object object) {
+            super.setPrimaryItem(container, position, object);
+            if (position == mCurrentPage || mDestroyed)
+                return;
+            mCurrentPage = position;
+            // queue the farthest pages first, queued prefetches run newest first
+            for (int distance = PAGER_OFFSCREEN_LIMIT; distance > 0; distance--) {
+                loadPage(position + distance, position);
+                loadPage(position - distance, position);
+            }
+            loadPage(position, position);
+        }
+
         @Override
         public boolean isViewFromObject(View view, Object object) {
             return (view == object);
@@ -140,59 +176,164 @@ abstract public class DetailBaseActivity extends Activity {
         @Override
         public void destroyItem(ViewGroup container, int position, Object object) {
             container.removeView((View)object);
+            mAttached[position] = false;
+            cancelPage(position);
+            releasePage(position);
         }
 
         public void destroyImages() {
+            mDestroyed = true;
+            PreviewExecutor.cancelAll(this);
             for (int i = 0; mImages != null && i < mImages.length; i++) {
                 if (mImages[i] != null) {
                     if (mImages[i].getDrawable() != null)
                         mImages[i].getDrawable().setCallback(null);
-                    mImages[i].setImageDrawable(null);
+                    mLoaders[i] = null;
+                    releasePage(i);
                 }
             }
         }
 
-        private class PreviewLoaderAsyncTask extends AsyncTask {
+        /**
+         * Queues the decode of an attached page that does not show its full preview yet,
+         * the current page ahead of its neighbours
+         */
+        private void loadPage(int position, int current) {
+            if (position < 0 || position >= mImages.length || !mAttached[position]
+                    || mFull[position])
+                return;
+            if (mPageHeight <= 0) {
+                // pages are as tall as the pager and as wide as the preview needs
+                mPageHeight = mPreviews != null && mPreviews.getHeight() > 0
+                        ? mPreviews.getHeight() : getResources().getDisplayMetrics().heightPixels;
+            }
+            PageLoader loader = mLoaders[position];
+            if (loader != null) {
+                // a decode in progress is left to finish, a queued one is requeued
+                if (loader.mStarted)
+                    return;
+                PreviewExecutor.cancel(loader.mTask);
+            }
+            loader = new PageLoader(position, mPageHeight);
+            mLoaders[position] = loader;
+            loader.mTask = PreviewExecutor.execute(this, position == current
+                    ? PreviewExecutor.PRIORITY_VISIBLE : PreviewExecutor.PRIORITY_PREFETCH, loader);
+        }
+
+        private void cancelPage(int position) {
+            PageLoader loader = mLoaders[position];
+            mLoaders[position] = null;
+            if (loader != null) {
+                loader.mCancelled = true;
+                PreviewExecutor.cancel(loader.mTask);
+            }
+        }
+
+        /**
+         * Takes the bitmap off the page and hands it back to the BitmapPool
+         */
+        private void releasePage(int position) {
+            mImages[position].setImageDrawable(null);
+            BitmapPool.getInstance().release(mBitmaps[position]);
+            mBitmaps[position] = null;
+            mFull[position] = false;
+        }
+
+        /**
+         * Shows bmp on the page, or releases it if the page no longer needs it
+         */
+        private void setPage(int position, Bitmap bmp, boolean full) {
+            if (mDestroyed || !mAttached[position] || mFull[position]
+                    || (!full && mBitmaps[position] != null)) {
+                BitmapPool.getInstance().release(bmp);
+                return;
+            }
+            BitmapPool.getInstance().release(mBitmaps[position]);
+            mBitmaps[position] = bmp;
+            mFull[position] = full;
+            mImages[position].setImageDrawable(new BitmapDrawable(getResources(), bmp));
+            if (full && position == mCurrentPage)
+                setProgressBarIndeterminateVisibility(false);
+        }
+
+        private void postPage(final int position, final Bitmap bmp, final boolean full) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    setPage(position, bmp, full);
+                }
+            });
+        }
+
+        private class PageLoader implements Runnable {
+            private final int mPosition;
+            private final int mHeight;
+            private PreviewExecutor.Task mTask;
+            private volatile boolean mStarted = false;
+            private volatile boolean mCancelled = false;
+
+            public PageLoader(int position, int height) {
+                mPosition = position;
+                mHeight = height;
+            }
 
             @Override
-            protected Object doInBackground(Object[] params) {
-                int i = 0;
+            public void run() {
+                mStarted = true;
                 try {
-                    ZipFile zip = new ZipFile(mTheme.getThemePath());
-                    ZipEntry ze;
-
-                    final Resources res = getResources();
-                    for (final ImageView preview : mImages) {
-                        ze = zip.getEntry(mPreviewList[i]);
-                        InputStream is = ze != null ? zip.getInputStream(ze) : null;
-                        if (is != null) {
-                            BitmapFactory.Options opts = new BitmapFactory.Options();
-                            opts.inPreferredConfig = Bitmap.Config.RGB_565;
-                            opts.inSampleSize = 2;
-                            Bitmap bmp = BitmapFactory.decodeStream(is, null, opts);
-                            final Drawable drawable = new BitmapDrawable(res, bmp);
-                            mHandler.post(new Runnable() {
-                                @Override
-                                public void run() {
-                                    preview.setImageDrawable(drawable);
-                                }
-                            });
-                            try {
-                                is.close();
-                            } catch (IOException e) {
-                            }
+                    load();
+                } finally {
+                    mHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (mLoaders[mPosition] == PageLoader.this)
+                                mLoaders[mPosition] = null;
                         }
-                        i++;
-                    }
-                } catch (IOException e) {
+                    });
                 }
-                return null;
             }
 
-            @Override
-            protected void onPostExecute(Object o) {
-                super.onPostExecute(o);
-                setProgressBarIndeterminateVisibility(false);
+            private void load() {
+                final PreviewCache cache = PreviewCache.getInstance();
+                String entryName = mPreviewList[mPosition];
+                String key = PreviewCache.key(mTheme, entryName, 0, mHeight);
+                Bitmap bmp = cache.acquire(key);
+                if (bmp != null) {
+                    postPage(mPosition, bmp, true);
+                    return;
+                }
+
+                ZipFileCache zipCache = ZipFileCache.getInstance();
+                ZipFile zip = null;
+                try {
+                    zip = zipCache.acquire(mTheme.getThemePath());
+                    ZipEntry ze = zip.getEntry(entryName);
+                    if (ze == null)
+                        return;
+                    BitmapDecoder.StreamOpener opener = BitmapDecoder.fromZipEntry(zip, ze);
+
+                    int placeholderHeight = mHeight / PLACEHOLDER_SCALE;
+                    String placeholderKey = PreviewCache.key(mTheme, entryName, 0, placeholderHeight);
+                    Bitmap placeholder = cache.acquire(placeholderKey);
+                    if (placeholder == null) {
+                        placeholder = BitmapDecoder.decode(opener, 0, placeholderHeight);
+                        BitmapPool.getInstance().retain(placeholder);
+                        cache.put(placeholderKey, placeholder);
+                    }
+                    if (placeholder != null)
+                        postPage(mPosition, placeholder, false);
+                    if (mDestroyed || mCancelled)
+                        return;
+
+                    bmp = BitmapDecoder.decode(opener, 0, mHeight);
+                    BitmapPool.getInstance().retain(bmp);
+                    cache.put(key, bmp);
+                    if (bmp != null)
+                        postPage(mPosition, bmp, true);
+                } catch (IOException e) {
+                } finally {
+                    zipCache.release(zip);
+                }
             }
         }
     }
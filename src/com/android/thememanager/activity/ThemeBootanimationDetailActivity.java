@@ -25,6 +25,7 @@ import android.content.IntentFilter;
 import android.content.res.IThemeManagerService;
 import android.os.Bundle;
 import android.os.ServiceManager;
+import android.util.DisplayMetrics;
 import android.view.MenuItem;
 import android.view.View;
 import android.widget.TextView;
@@ -34,16 +35,21 @@ import com.android.thememanager.Globals;
 import com.android.thememanager.R;
 import com.android.thememanager.SimpleDialogs;
 import com.android.thememanager.Theme;
+import com.android.thememanager.ThemeArchiveProbe;
 import com.android.thememanager.ThemeUtils;
+import com.android.thememanager.ZipFileCache;
 import com.android.thememanager.provider.FileProvider;
 import com.android.thememanager.widget.BootanimationImageView;
+import com.android.thememanager.widget.BootanimationTranscoder;
 
+import static com.android.thememanager.widget.BootanimationTranscoder.BOOTANIMATION_ENTRY;
+
+import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.InputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
 
 public class ThemeBootanimationDetailActivity extends Activity {
     private static final String TAG = "ThemeManager";
@@ -54,6 +60,7 @@ public class ThemeBootanimationDetailActivity extends Activity {
     private ProgressDialog mProgressDialog;
     private int mElementType = 0;
     private Theme mTheme = null;
+    private BootanimationTranscoder.Transcode mTranscode = null;
 
 
     @Override
@@ -64,17 +71,39 @@ public class ThemeBootanimationDetailActivity extends Activity {
 
         mTheme = ThemeUtils.getThemeEntryById(getIntent().getLongExtra("theme_id", -1), this);
 
-        if (mTheme == null)
+        // the theme was deleted since the screen was opened
+        if (mTheme == null) {
             finish();
+            return;
+        }
         mElementType = getIntent().getIntExtra("type", 0);
         ((TextView)findViewById(R.id.theme_name)).setText(mTheme.getTitle());
 
         setTitle(Theme.sElementLabels[mElementType]);
 
         mPreview = (BootanimationImageView) findViewById(R.id.preview);
+        // renditions are kept at half the screen like the extracted previews always were,
+        // full screen frames would make each one tens of megabytes
+        DisplayMetrics dm = getResources().getDisplayMetrics();
+        int width = dm.widthPixels / 2;
+        int height = dm.heightPixels / 2;
         try {
-            extractAnimation(mTheme.getThemePath());
-            mPreview.loadAnimation(Globals.CACHE_DIR + "/bootanimation.zip");
+            File rendition = BootanimationTranscoder.getRendition(mTheme, width, height);
+            if (rendition != null) {
+                mPreview.loadAnimation(rendition.getPath());
+            } else {
+                ThemeArchiveProbe animation = ThemeArchiveProbe.probeNested(
+                        mTheme.getThemePath(), BOOTANIMATION_ENTRY);
+                if (animation != null) {
+                    mPreview.loadAnimation(animation);
+                    mTranscode = BootanimationTranscoder.transcodeAsync(mTheme, animation,
+                            width, height);
+                } else {
+                    // compressed animations can not be read in place
+                    extractAnimation(mTheme.getThemePath());
+                    mPreview.loadAnimation(Globals.CACHE_DIR + "/bootanimation.zip");
+                }
+            }
         } catch (IOException e) {
         }
 
@@ -83,13 +112,14 @@ public class ThemeBootanimationDetailActivity extends Activity {
     }
 
     private void extractAnimation(String path) throws IOException {
-        ZipFile zip = new ZipFile(path);
-        ZipEntry entry = zip.getEntry("boots/bootanimation.zip");
-        byte[] buffer = new byte[1024];
-        FileOutputStream out = new FileOutputStream(Globals.CACHE_DIR + "/bootanimation.zip");
-        copyInputStream(zip.getInputStream(entry), out);
-        out.close();
-        zip.close();
+        InputStream in = ZipFileCache.getInstance().openEntry(path, BOOTANIMATION_ENTRY);
+        if (in == null)
+            throw new FileNotFoundException(BOOTANIMATION_ENTRY);
+        try {
+            copyInputStream(in, new FileOutputStream(Globals.CACHE_DIR + "/bootanimation.zip"));
+        } finally {
+            in.close();
+        }
     }
 
     private final BroadcastReceiver mBroadcastReceiver = new BroadcastReceiver() {
@@ -109,6 +139,8 @@ public class ThemeBootanimationDetailActivity extends Activity {
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        if (mTranscode != null)
+            mTranscode.cancel();
     }
 
     @Override
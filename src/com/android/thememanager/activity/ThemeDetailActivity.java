@@ -76,8 +76,11 @@ public class ThemeDetailActivity extends DetailBaseActivity implements SlidingUp
         mTheme = ThemeUtils.getThemeEntryById(getIntent().getLongExtra("theme_id", -1), this);
         mExcludedItemsList = new ArrayList<String>();
 
-        if (mTheme == null)
+        // the theme was deleted since the screen was opened
+        if (mTheme == null) {
             finish();
+            return;
+        }
 
         mHandler = new Handler();
 
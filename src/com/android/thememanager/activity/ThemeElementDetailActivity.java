@@ -52,47 +52,16 @@ public class ThemeElementDetailActivity extends DetailBaseActivity {
 
         mTheme = ThemeUtils.getThemeEntryById(getIntent().getLongExtra("theme_id", -1), this);
 
-        if (mTheme == null)
+        // the theme was deleted since the screen was opened
+        if (mTheme == null) {
             finish();
+            return;
+        }
 
         mHandler = new Handler();
         mElementType = getIntent().getIntExtra("type", 0);
         String themeName = FileUtils.stripPath(mTheme.getFileName());
-        switch (mElementType) {
-            case Theme.THEME_ELEMENT_TYPE_ICONS:
-                mPreviewList = PreviewHelper.getIconPreviews(mTheme);
-                break;
-            case Theme.THEME_ELEMENT_TYPE_WALLPAPER:
-                mPreviewList = PreviewHelper.getWallpaperPreviews(mTheme);
-                break;
-            case Theme.THEME_ELEMENT_TYPE_LOCK_WALLPAPER:
-                mPreviewList = PreviewHelper.getLockWallpaperPreviews(mTheme);
-                break;
-            case Theme.THEME_ELEMENT_TYPE_SYSTEMUI:
-                mPreviewList = PreviewHelper.getStatusbarPreviews(mTheme);
-                break;
-            case Theme.THEME_ELEMENT_TYPE_FRAMEWORK:
-                mPreviewList = PreviewHelper.getLauncherPreviews(mTheme);
-                break;
-            case Theme.THEME_ELEMENT_TYPE_CONTACTS:
-                mPreviewList = PreviewHelper.getContactsPreviews(mTheme);
-                break;
-            case Theme.THEME_ELEMENT_TYPE_DIALER:
-                mPreviewList = PreviewHelper.getDialerPreviews(mTheme);
-                break;
-            case Theme.THEME_ELEMENT_TYPE_RINGTONES:
-                mPreviewList = PreviewHelper.getContactsPreviews(mTheme);
-                break;
-            case Theme.THEME_ELEMENT_TYPE_BOOTANIMATION:
-                mPreviewList = PreviewHelper.getBootanimationPreviews(mTheme);
-                break;
-            case Theme.THEME_ELEMENT_TYPE_MMS:
-                mPreviewList = PreviewHelper.getMmsPreviews(mTheme);
-                break;
-            case Theme.THEME_ELEMENT_TYPE_FONT:
-                mPreviewList = PreviewHelper.getFontsPreviews(mTheme);
-                break;
-        }
+        mPreviewList = PreviewHelper.getElementPreviews(mTheme, mElementType);
 
         ((TextView)findViewById(R.id.theme_name)).setText(mTheme.getTitle());
 
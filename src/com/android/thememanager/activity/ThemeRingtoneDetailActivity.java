@@ -70,8 +70,11 @@ public class ThemeRingtoneDetailActivity extends Activity
 
         mTheme = ThemeUtils.getThemeEntryById(getIntent().getLongExtra("theme_id", -1), this);
 
-        if (mTheme == null)
+        // the theme was deleted since the screen was opened
+        if (mTheme == null) {
             finish();
+            return;
+        }
         mElementType = getIntent().getIntExtra("type", 0);
         if (mElementType != Theme.THEME_ELEMENT_TYPE_RINGTONES)
             finish();
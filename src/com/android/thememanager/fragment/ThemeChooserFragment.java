@@ -24,7 +24,7 @@ import android.os.Handler;
 import android.os.Message;
 import android.os.ServiceManager;
 import android.app.Fragment;
-import android.util.DisplayMetrics;
+import android.text.TextUtils;
 import android.util.Log;
 import android.view.ContextMenu;
 import android.view.LayoutInflater;
@@ -34,27 +34,24 @@ import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.AdapterView;
-import android.widget.BaseAdapter;
-import android.widget.FrameLayout;
 import android.widget.GridView;
 import android.widget.ImageView;
-import android.widget.LinearLayout;
-import android.widget.TextView;
+import android.widget.SearchView;
 
-import com.android.thememanager.FileUtils;
 import com.android.thememanager.Globals;
 import com.android.thememanager.PreviewHolder;
 import com.android.thememanager.PreviewManager;
 import com.android.thememanager.R;
 import com.android.thememanager.SimpleDialogs;
-import com.android.thememanager.Theme;
+import com.android.thememanager.ThemeLibraryScanner;
+import com.android.thememanager.ThemePreviewAdapter;
+import com.android.thememanager.ThemeSummary;
+import com.android.thememanager.ThemeQuery;
+import com.android.thememanager.ThemeSummaryList;
 import com.android.thememanager.ThemesDataSource;
 import com.android.thememanager.ThemeUtils;
 import com.android.thememanager.activity.ThemeDetailActivity;
-import com.android.thememanager.widget.FlipImageView;
 
-import java.io.File;
-import java.io.FilenameFilter;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -62,11 +59,18 @@ public class ThemeChooserFragment extends Fragment {
     private static final String TAG = "ThemeManager";
     private static final String THEMES_PATH = Globals.DEFAULT_THEME_PATH;
 
+    private static final int MSG_SHOW_THEMES = 0;
+    private static final int MSG_LIBRARY_CHANGED = 1;
+    // scanner changes arriving within this window are applied with a single requery
+    private static final long LIBRARY_CHANGE_DELAY = 300;
+
     private GridView mGridView = null;
     private PreviewAdapter mAdapter = null;
     private LoadThemesInfoTask mTask = null;
     private ImageView mChameleon = null;
-    private List<Theme> mThemesList;
+    private List<ThemeSummary> mThemesList;
+    private SearchTask mSearchTask = null;
+    private String mSearchText = null;
 
     private boolean mReady = true;
     private List<Runnable> mPendingCallbacks = new LinkedList<Runnable>();
@@ -77,6 +81,10 @@ public class ThemeChooserFragment extends Fragment {
         setRetainInstance(true);
         setHasOptionsMenu(true);
         getActivity().setProgressBarIndeterminateVisibility(true);
+
+        // the fragment is retained, so this scans once rather than on every new view
+        mTask = new LoadThemesInfoTask(getActivity());
+        mTask.execute();
 	}
 
     @Override
@@ -98,11 +106,21 @@ public class ThemeChooserFragment extends Fragment {
             }
         });
 
-        mChameleon.setVisibility(View.VISIBLE);
-        mGridView.setVisibility(View.GONE);
+        // the adapter of the previous view still holds queued loads and pooled bitmaps
+        if (mAdapter != null)
+            mAdapter.destroy();
+        mAdapter = null;
 
-        mTask = new LoadThemesInfoTask();
-        mTask.execute();
+        setThemesList(loadThemeSummaries());
+        if (mThemesList.size() > 0 || mTask.getStatus() == AsyncTask.Status.FINISHED) {
+            mAdapter = new PreviewAdapter(getActivity());
+            mGridView.setAdapter(mAdapter);
+            mChameleon.setVisibility(View.GONE);
+            mGridView.setVisibility(View.VISIBLE);
+        } else {
+            mChameleon.setVisibility(View.VISIBLE);
+            mGridView.setVisibility(View.GONE);
+        }
         return v;
     }
 
@@ -135,12 +153,11 @@ public class ThemeChooserFragment extends Fragment {
         AdapterView.AdapterContextMenuInfo info = (AdapterView.AdapterContextMenuInfo) item.getMenuInfo();
         switch (item.getItemId()) {
             case R.id.menu_delete_theme:
-                int id = info.targetView.getId();
-                Theme theme = mThemesList.get(id);
+                ThemeSummary theme = mThemesList.get(info.position);
                 if (!theme.getIsDefaultTheme()) {
                     ThemeUtils.deleteTheme(theme, getActivity());
                     ThemeUtils.deleteThemeCacheDir(theme.getFileName());
-                    mViewUpdateHandler.sendEmptyMessage(0);
+                    mViewUpdateHandler.sendEmptyMessage(MSG_SHOW_THEMES);
                 }
                 return true;
             default:
@@ -151,18 +168,53 @@ public class ThemeChooserFragment extends Fragment {
     private Handler mViewUpdateHandler = new Handler() {
         @Override
         public void handleMessage(Message msg) {
-            ThemesDataSource dataSource = new ThemesDataSource(getActivity());
-            dataSource.open();
-            mThemesList = dataSource.getAllThemes();
-            dataSource.close();
-
-            mAdapter = new PreviewAdapter(getActivity());
-            mGridView.setAdapter(mAdapter);
-            mChameleon.setVisibility(View.GONE);
-            mGridView.setVisibility(View.VISIBLE);
+            switch (msg.what) {
+                case MSG_SHOW_THEMES:
+                    if (mSearchText != null)
+                        search(mSearchText);
+                    else
+                        showThemes(loadThemeSummaries());
+                    break;
+                case MSG_LIBRARY_CHANGED:
+                    // search results are refreshed from the index once the search is cleared
+                    if (mAdapter == null || mGridView == null || mSearchText != null)
+                        break;
+                    // requeried rather than patched so the grid keeps the query's order
+                    ThemeSummaryList themes = loadThemeSummaries();
+                    mAdapter.setThemes(themes);
+                    setThemesList(themes);
+                    break;
+            }
         }
     };
 
+    /**
+     * Streams the summaries of every theme, rows are only read as the grid binds them
+     */
+    private ThemeSummaryList loadThemeSummaries() {
+        ThemesDataSource dataSource = new ThemesDataSource(getActivity());
+        dataSource.open();
+        ThemeSummaryList summaries = dataSource.querySummaries(
+                new ThemeQuery().setOrder(ThemeQuery.ORDER_COMPLETE_FIRST));
+        dataSource.close();
+        return summaries;
+    }
+
+    /**
+     * Replaces the themes shown, closing the cursor of the list they replace
+     */
+    private void setThemesList(List<ThemeSummary> themes) {
+        List<ThemeSummary> previous = mThemesList;
+        mThemesList = themes;
+        if (previous != themes)
+            closeThemesList(previous);
+    }
+
+    private static void closeThemesList(List<ThemeSummary> themes) {
+        if (themes instanceof ThemeSummaryList)
+            ((ThemeSummaryList) themes).close();
+    }
+
     public void runWhenReady(Runnable runnable) {
         if (mReady)
             getActivity().runOnUiThread(runnable);
@@ -173,8 +225,59 @@ public class ThemeChooserFragment extends Fragment {
 	@Override
 	public void onCreateOptionsMenu(Menu menu, MenuInflater inflater) {
 		inflater.inflate(R.menu.activity_theme_chooser, menu);
+        SearchView searchView = (SearchView) menu.findItem(R.id.menu_search).getActionView();
+        searchView.setQueryHint(getString(R.string.menu_search));
+        searchView.setOnQueryTextListener(new SearchView.OnQueryTextListener() {
+            @Override
+            public boolean onQueryTextSubmit(String query) {
+                search(query);
+                return true;
+            }
+
+            @Override
+            public boolean onQueryTextChange(String newText) {
+                search(newText);
+                return true;
+            }
+        });
 	}
 
+    /**
+     * Shows only the themes matching text, or every theme again when text is empty
+     */
+    private void search(String text) {
+        if (mSearchTask != null)
+            mSearchTask.cancel(false);
+        mSearchTask = null;
+        if (TextUtils.isEmpty(text) || TextUtils.isEmpty(text.trim())) {
+            if (mSearchText != null) {
+                mSearchText = null;
+                mViewUpdateHandler.sendEmptyMessage(MSG_SHOW_THEMES);
+            }
+            return;
+        }
+        mSearchText = text;
+        mSearchTask = new SearchTask(getActivity());
+        mSearchTask.execute(text);
+    }
+
+    private void showThemes(List<ThemeSummary> themes) {
+        if (mGridView == null) {
+            closeThemesList(themes);
+            return;
+        }
+        List<ThemeSummary> previous = mThemesList;
+        mThemesList = themes;
+        if (mAdapter != null)
+            mAdapter.destroy();
+        mAdapter = new PreviewAdapter(getActivity());
+        mGridView.setAdapter(mAdapter);
+        if (previous != themes)
+            closeThemesList(previous);
+        mChameleon.setVisibility(View.GONE);
+        mGridView.setVisibility(View.VISIBLE);
+    }
+
     @Override
     public boolean onOptionsItemSelected(MenuItem menuItem) {
         switch (menuItem.getItemId()) {
@@ -212,10 +315,16 @@ public class ThemeChooserFragment extends Fragment {
     @Override
     public void onDestroy() {
         super.onDestroy();
-        mAdapter.destroy();
+        if (mSearchTask != null)
+            mSearchTask.cancel(false);
+        mSearchTask = null;
+        // queued updates would otherwise run against the views cleared below
+        mViewUpdateHandler.removeCallbacksAndMessages(null);
+        if (mAdapter != null)
+            mAdapter.destroy();
         mAdapter = null;
         mGridView = null;
-        System.gc();
+        setThemesList(null);
     }
 
     @Override
@@ -223,126 +332,93 @@ public class ThemeChooserFragment extends Fragment {
         super.onResume();
     }
 
-    private String[] themeList(String path) {
-        Log.d(TAG, "Returning theme list for " + path);
-        FilenameFilter themeFilter = new FilenameFilter() {
-            @Override
-            public boolean accept(File file, String s) {
-                if (s.toLowerCase().endsWith(".ctz") || s.toLowerCase().endsWith(".mtz"))
-                    return true;
-                else
-                    return false;
-            }
-        };
-
-        File dir = new File(path);
-        String[] dirList = null;
-        if (dir.exists() && dir.isDirectory())
-            dirList = dir.list(themeFilter);
-        else
-            Log.e(TAG, path + " does not exist or is not a directory!");
-        return dirList;
-    }
-
     void markAsDone() {
-        mViewUpdateHandler.sendEmptyMessage(0);
+        mViewUpdateHandler.sendEmptyMessage(MSG_SHOW_THEMES);
     }
 
-    public class PreviewAdapter extends BaseAdapter {
-        private Context mContext;
-
-        private PreviewManager mPreviewManager = new PreviewManager();
+    /**
+     * Refreshes the grid for a change reported by the library scanner.  Changes arriving
+     * close together, as they do during a scan, are applied with a single requery.
+     */
+    void applyLibraryChange(ThemeLibraryScanner.LibraryChange change) {
+        if (mAdapter == null)
+            return;
+        // cached previews belong to the archive that was replaced
+        if (change.type == ThemeLibraryScanner.LibraryChange.TYPE_CHANGED && change.theme != null)
+            mAdapter.invalidatePreview(change.theme);
+        mViewUpdateHandler.removeMessages(MSG_LIBRARY_CHANGED);
+        mViewUpdateHandler.sendEmptyMessageDelayed(MSG_LIBRARY_CHANGED, LIBRARY_CHANGE_DELAY);
+    }
 
-        private View[] mPreviews;
-        private int mPreviewWidth;
-        private int mPreviewHeight;
+    public class PreviewAdapter extends ThemePreviewAdapter {
+        private PreviewManager mPreviewManager =
+                new PreviewManager(getPreviewWidth(), getPreviewHeight());
 
         public PreviewAdapter(Context c) {
-            mContext = c;
-            int numColumns = getResources().getInteger(R.integer.gridviewNumColumns);
-            int spacingTotal = mGridView.getHorizontalSpacing() * (numColumns - 1);
-            DisplayMetrics dm = c.getResources().getDisplayMetrics();
-            float aspectRatio = 1;
-            if (dm.heightPixels > dm.widthPixels)
-                aspectRatio = (float)dm.heightPixels / dm.widthPixels;
-            else
-                aspectRatio = (float)dm.widthPixels / dm.heightPixels;
-
-            mPreviewWidth = dm.widthPixels / numColumns - spacingTotal;
-            mPreviewHeight = (int)(mPreviewWidth * aspectRatio);
-            preloadPreviews();
-        }
-
-        private void preloadPreviews() {
-            mPreviews = new View[mThemesList.size()];
-            for (int i = 0; i < mPreviews.length; i++) {
-                LayoutInflater inflater = (LayoutInflater) mContext.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
-                mPreviews[i] = inflater.inflate(R.layout.theme_preview, null);
-                mPreviews[i].setId(i);
-                FrameLayout fl = (FrameLayout)mPreviews[i].findViewById(R.id.preview_layout);
-                LinearLayout.LayoutParams params = (LinearLayout.LayoutParams)fl.getLayoutParams();
-                params.width = mPreviewWidth;
-                params.height = mPreviewHeight;
-                fl.setLayoutParams(params);
-                PreviewHolder holder = new PreviewHolder();
-                holder.preview = (FlipImageView) mPreviews[i].findViewById(R.id.preview_image);
-                holder.name = (TextView) mPreviews[i].findViewById(R.id.theme_name);
-                holder.osTag = (ImageView) mPreviews[i].findViewById(R.id.os_indicator);
-                holder.progress = mPreviews[i].findViewById(R.id.loading_indicator);
-                holder.index = i;
-                mPreviews[i].setTag(holder);
-                mPreviewManager.fetchDrawableOnThread(mThemesList.get(i), holder);
-
-                holder.name.setText(mThemesList.get(i).getTitle());
-                holder.preview.setImageResource(R.drawable.empty_preview);
-
-                if (mThemesList.get(i).getIsCosTheme())
-                    holder.osTag.setImageResource(R.drawable.chaos);
-                else
-                    holder.osTag.setImageResource(R.drawable.miui);
-            }
+            super(c, mGridView, mThemesList);
         }
 
-        public int getCount() {
-            return mThemesList.size();
+        @Override
+        protected void loadPreview(ThemeSummary theme, PreviewHolder holder) {
+            mPreviewManager.fetchDrawableOnThread(theme, holder);
         }
 
-        public Object getItem(int position) {
-            return position;
+        @Override
+        protected void cancelPreview(PreviewHolder holder) {
+            mPreviewManager.cancel(holder);
         }
 
-        public long getItemId(int position) {
-            return position;
+        @Override
+        protected void prefetchPreview(ThemeSummary theme) {
+            mPreviewManager.prefetch(theme);
         }
 
-        public View getView(int position, View convertView, ViewGroup parent) {
-            return mPreviews[position];
+        public void invalidatePreview(ThemeSummary theme) {
+            mPreviewManager.invalidate(theme);
         }
 
+        @Override
         public void destroy() {
+            super.destroy();
+            mPreviewManager.cancelAll();
             mPreviewManager = null;
-            mContext = null;
         }
     }
 
-    private void removeNonExistingThemes(String[] availableThemes) {
-        List<Theme> themes = ThemeUtils.getAllThemes(getActivity());
-        for (Theme theme : themes) {
-            boolean exists = false;
-            for (String s : availableThemes) {
-                if (theme.getThemePath().contains(s)) {
-                    exists = true;
-                    break;
-                }
-            }
-            if (!exists) {
-                ThemeUtils.deleteTheme(theme, getActivity());
-                ThemeUtils.deleteThemeCacheDir(theme.getFileName());
-            }
+    private class SearchTask extends AsyncTask<String, Void, List<ThemeSummary>> {
+        private static final int MAX_RESULTS = 100;
+        private Context mContext;
+
+        public SearchTask(Context context) {
+            mContext = context.getApplicationContext();
+        }
+
+        @Override
+        protected List<ThemeSummary> doInBackground(String... strings) {
+            ThemesDataSource dataSource = new ThemesDataSource(mContext);
+            dataSource.open();
+            List<ThemeSummary> results = dataSource.searchThemes(strings[0], MAX_RESULTS);
+            dataSource.close();
+            return results;
+        }
+
+        @Override
+        protected void onPostExecute(List<ThemeSummary> results) {
+            if (mSearchTask != this || mGridView == null)
+                return;
+            mSearchTask = null;
+            showThemes(results);
         }
     }
 
-    private class LoadThemesInfoTask extends AsyncTask<String, Integer, Boolean> {
+    private class LoadThemesInfoTask extends AsyncTask<String, ThemeLibraryScanner.LibraryChange, Boolean>
+            implements ThemeLibraryScanner.OnLibraryChangedListener {
+        private Context mContext;
+
+        public LoadThemesInfoTask(Context context) {
+            mContext = context.getApplicationContext();
+        }
+
         @Override
         protected void onPreExecute() {
             super.onPreExecute();
@@ -350,19 +426,19 @@ public class ThemeChooserFragment extends Fragment {
 
         @Override
         protected Boolean doInBackground(String... strings) {
-            try {
-                ThemeUtils.addThemeEntryToDb("default", Globals.DEFAULT_SYSTEM_THEME,
-                        getActivity().getApplicationContext(), true);
-                String[] availableThemes = themeList(THEMES_PATH);
-                for (String themeId : availableThemes) {
-                    ThemeUtils.addThemeEntryToDb(FileUtils.stripExtension(themeId),
-                            THEMES_PATH + "/" + themeId,
-                            getActivity(), false);
-                }
-            } catch (NullPointerException e) {
-                return Boolean.FALSE;
-            }
-            return Boolean.TRUE;
+            ThemeLibraryScanner scanner = new ThemeLibraryScanner(mContext, THEMES_PATH);
+            return scanner.scan(this);
+        }
+
+        @Override
+        public void onLibraryChanged(ThemeLibraryScanner.LibraryChange change) {
+            publishProgress(change);
+        }
+
+        @Override
+        protected void onProgressUpdate(ThemeLibraryScanner.LibraryChange... changes) {
+            for (ThemeLibraryScanner.LibraryChange change : changes)
+                applyLibraryChange(change);
         }
 
         @Override
@@ -371,7 +447,8 @@ public class ThemeChooserFragment extends Fragment {
                 @Override
                 public void run() {
                     getActivity().setProgressBarIndeterminateVisibility(false);
-                    markAsDone();
+                    if (mAdapter == null)
+                        markAsDone();
                 }
             });
         }
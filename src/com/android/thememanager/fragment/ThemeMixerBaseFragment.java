@@ -17,12 +17,13 @@ package com.android.thememanager.fragment;
 
 import android.app.Fragment;
 import android.app.ProgressDialog;
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.res.IThemeManagerService;
 import android.os.Bundle;
 import android.os.ServiceManager;
-import android.util.DisplayMetrics;
 import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuInflater;
@@ -30,33 +31,29 @@ import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.AdapterView;
-import android.widget.BaseAdapter;
-import android.widget.FrameLayout;
 import android.widget.GridView;
 import android.widget.ImageView;
-import android.widget.LinearLayout;
-import android.widget.TextView;
 import com.android.thememanager.ElementPreviewManager;
 import com.android.thememanager.Globals;
 import com.android.thememanager.PreviewHolder;
 import com.android.thememanager.R;
 import com.android.thememanager.SimpleDialogs;
 import com.android.thememanager.Theme;
+import com.android.thememanager.ThemePreviewAdapter;
+import com.android.thememanager.ThemeSummary;
 import com.android.thememanager.ThemeUtils;
-import com.android.thememanager.ThemesDataSource;
+import com.android.thememanager.PagedThemeSummaryList;
+import com.android.thememanager.ThemeQuery;
 import com.android.thememanager.activity.ThemeBootanimationDetailActivity;
 import com.android.thememanager.activity.ThemeElementDetailActivity;
 import com.android.thememanager.activity.ThemeRingtoneDetailActivity;
-import com.android.thememanager.widget.FlipImageView;
-
-import java.util.List;
 
 public class ThemeMixerBaseFragment extends Fragment {
     private static final String TAG = "ThemeManager";
     private static final String THEMES_PATH = Globals.DEFAULT_THEME_PATH;
 
     private GridView mGridView = null;
-    private List<Theme> mThemeList = null;
+    private PagedThemeSummaryList mThemeList = null;
     private PreviewAdapter mAdapter = null;
     protected int mElementType = Theme.THEME_ELEMENT_TYPE_ICONS;
 
@@ -67,6 +64,8 @@ public class ThemeMixerBaseFragment extends Fragment {
         setHasOptionsMenu(true);
 
         mThemeList = themeList(mElementType);
+        getActivity().getApplicationContext().registerReceiver(mLibraryReceiver,
+                new IntentFilter(Globals.ACTION_THEME_LIBRARY_CHANGED));
 	}
 
     @Override
@@ -102,10 +101,11 @@ public class ThemeMixerBaseFragment extends Fragment {
     @Override
     public void onDestroy() {
         super.onDestroy();
+        getActivity().getApplicationContext().unregisterReceiver(mLibraryReceiver);
         mAdapter.destroy();
         mAdapter = null;
         mGridView = null;
-        System.gc();
+        mThemeList.close();
     }
 
     @Override
@@ -113,48 +113,21 @@ public class ThemeMixerBaseFragment extends Fragment {
         super.onResume();
     }
 
-    private List<Theme> themeList(int elementType) {
-        ThemesDataSource dataSource = new ThemesDataSource(getActivity());
-        dataSource.open();
-        List<Theme> list = null;
-        switch(elementType) {
-            case Theme.THEME_ELEMENT_TYPE_ICONS:
-                list = dataSource.getIconThemes();
-                break;
-            case Theme.THEME_ELEMENT_TYPE_WALLPAPER:
-                list = dataSource.getWallpaperThemes();
-                break;
-            case Theme.THEME_ELEMENT_TYPE_LOCK_WALLPAPER:
-                list = dataSource.getLockscreenWallpaperThemes();
-                break;
-            case Theme.THEME_ELEMENT_TYPE_SYSTEMUI:
-                list = dataSource.getSystemUIThemes();
-                break;
-            case Theme.THEME_ELEMENT_TYPE_FRAMEWORK:
-                list = dataSource.getFrameworkThemes();
-                break;
-            case Theme.THEME_ELEMENT_TYPE_CONTACTS:
-                list = dataSource.getContactsThemes();
-                break;
-            case Theme.THEME_ELEMENT_TYPE_DIALER:
-                list = dataSource.getDialerThemes();
-                break;
-            case Theme.THEME_ELEMENT_TYPE_RINGTONES:
-                list = dataSource.getRingtoneThemes();
-                break;
-            case Theme.THEME_ELEMENT_TYPE_BOOTANIMATION:
-                list = dataSource.getBootanimationThemes();
-                break;
-            case Theme.THEME_ELEMENT_TYPE_MMS:
-                list = dataSource.getMmsThemes();
-                break;
-            case Theme.THEME_ELEMENT_TYPE_FONT:
-                list = dataSource.getFontThemes();
-                break;
+    private final BroadcastReceiver mLibraryReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            // the paged list only knows the themes that matched when it was built, and a
+            // retained fragment may have no activity while this arrives
+            PagedThemeSummaryList previous = mThemeList;
+            mThemeList = new PagedThemeSummaryList(context, ThemeQuery.forElement(mElementType));
+            if (mAdapter != null)
+                mAdapter.setThemes(mThemeList);
+            previous.close();
         }
+    };
 
-        dataSource.close();
-        return list;
+    private PagedThemeSummaryList themeList(int elementType) {
+        return new PagedThemeSummaryList(getActivity(), ThemeQuery.forElement(elementType));
     }
 
     @Override
@@ -229,82 +202,41 @@ public class ThemeMixerBaseFragment extends Fragment {
         }
     }
 
-    public class PreviewAdapter extends BaseAdapter {
-        private Context mContext;
-
-        private ElementPreviewManager mPreviewManager = new ElementPreviewManager();
-
-        private View[] mPreviews;
-        private int mPreviewWidth;
-        private int mPreviewHeight;
+    public class PreviewAdapter extends ThemePreviewAdapter {
+        private ElementPreviewManager mPreviewManager =
+                new ElementPreviewManager(getPreviewWidth(), getPreviewHeight());
 
         public PreviewAdapter(Context c) {
-            mContext = c;
-            int numColumns = getResources().getInteger(R.integer.gridviewNumColumns);
-            int spacingTotal = mGridView.getHorizontalSpacing() * (numColumns - 1);
-            DisplayMetrics dm = c.getResources().getDisplayMetrics();
-            float aspectRatio = 1;
-            if (dm.heightPixels > dm.widthPixels)
-                aspectRatio = (float)dm.heightPixels / dm.widthPixels;
-            else
-                aspectRatio = (float)dm.widthPixels / dm.heightPixels;
-
-            mPreviewWidth = dm.widthPixels / numColumns - spacingTotal;
-            mPreviewHeight = (int)(mPreviewWidth * aspectRatio);
-            preloadPreviews();
-        }
-
-        private void preloadPreviews() {
-            mPreviews = new View[mThemeList.size()];
-            for (int i = 0; i < mPreviews.length; i++) {
-                LayoutInflater inflater = (LayoutInflater) mContext.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
-                mPreviews[i] = inflater.inflate(R.layout.theme_preview, null);
-                FrameLayout fl = (FrameLayout)mPreviews[i].findViewById(R.id.preview_layout);
-                LinearLayout.LayoutParams params = (LinearLayout.LayoutParams)fl.getLayoutParams();
-                params.width = mPreviewWidth;
-                params.height = mPreviewHeight;
-                fl.setLayoutParams(params);
-                PreviewHolder holder = new PreviewHolder();
-                holder.preview = (FlipImageView) mPreviews[i].findViewById(R.id.preview_image);
-                holder.name = (TextView) mPreviews[i].findViewById(R.id.theme_name);
-                holder.osTag = (ImageView) mPreviews[i].findViewById(R.id.os_indicator);
-                holder.progress = mPreviews[i].findViewById(R.id.loading_indicator);
-                holder.index = i;
-                mPreviews[i].setTag(holder);
-                mPreviewManager.fetchDrawableOnThread(mThemeList.get(i), mElementType, holder);
-
-                holder.name.setText(mThemeList.get(i).getTitle());
-                holder.preview.setImageResource(R.drawable.empty_preview);
-                if (mElementType == Theme.THEME_ELEMENT_TYPE_WALLPAPER ||
-                        mElementType == Theme.THEME_ELEMENT_TYPE_LOCK_WALLPAPER)
-                    holder.preview.setScaleType(ImageView.ScaleType.CENTER_CROP);
-
-                if (mThemeList.get(i).getIsCosTheme())
-                    holder.osTag.setImageResource(R.drawable.chaos);
-                else
-                    holder.osTag.setImageResource(R.drawable.miui);
-            }
+            super(c, mGridView, mThemeList);
         }
 
-        public int getCount() {
-            return mThemeList.size();
+        @Override
+        protected void onCreateHolder(PreviewHolder holder) {
+            if (mElementType == Theme.THEME_ELEMENT_TYPE_WALLPAPER ||
+                    mElementType == Theme.THEME_ELEMENT_TYPE_LOCK_WALLPAPER)
+                holder.preview.setScaleType(ImageView.ScaleType.CENTER_CROP);
         }
 
-        public Object getItem(int position) {
-            return position;
+        @Override
+        protected void loadPreview(ThemeSummary theme, PreviewHolder holder) {
+            mPreviewManager.fetchDrawableOnThread(theme, mElementType, holder);
         }
 
-        public long getItemId(int position) {
-            return position;
+        @Override
+        protected void cancelPreview(PreviewHolder holder) {
+            mPreviewManager.cancel(holder);
         }
 
-        public View getView(int position, View convertView, ViewGroup parent) {
-            return mPreviews[position];
+        @Override
+        protected void prefetchPreview(ThemeSummary theme) {
+            mPreviewManager.prefetch(theme, mElementType);
         }
 
+        @Override
         public void destroy() {
+            super.destroy();
+            mPreviewManager.cancelAll();
             mPreviewManager = null;
-            mContext = null;
         }
     }
 }
@@ -18,23 +18,58 @@ package com.android.thememanager.widget;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
-import android.graphics.drawable.AnimationDrawable;
-import android.graphics.drawable.BitmapDrawable;
+import android.os.Handler;
+import android.os.Process;
+import android.os.SystemClock;
 import android.util.AttributeSet;
+import android.util.Log;
+import android.util.LruCache;
 import android.widget.ImageView;
 
+import com.android.thememanager.BitmapDecoder;
+import com.android.thememanager.BitmapPool;
+import com.android.thememanager.ThemeArchiveProbe;
+import com.android.thememanager.ThemeArchiveProbe.EntryInfo;
+
 import java.io.*;
 import java.util.ArrayList;
-import java.util.Enumeration;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
+/**
+ * Plays a boot animation straight out of its archive, which may itself be stored inside
+ * a theme (see ThemeArchiveProbe.probeNested).  Frames are decoded on a
+ * background thread just ahead of playback into a small ring buffer, so memory stays
+ * bounded by BUFFER_FRAMES no matter how long the animation is and the first frame
+ * shows as soon as it is decoded.  Bitmaps that scroll out of the buffer go back to
+ * the BitmapPool for the following frames to decode into.
+ */
 public class BootanimationImageView extends ImageView {
+    private static final String TAG = "BootanimationImageView";
+    // decoded frames waiting to be shown
+    private static final int BUFFER_FRAMES = 3;
+    // parts with a play count of 0 loop until the view goes away
+    private static final int PLAY_FOREVER = 0;
+    // frame tables of recently played animations
+    private static final int MAX_FRAME_TABLES = 4;
+
+    private static final LruCache<String, FrameTable> sFrameTables =
+            new LruCache<String, FrameTable>(MAX_FRAME_TABLES);
+
+    private final Handler mHandler = new Handler();
     private List<AnimationPart> mAnimationParts;
     private int mFrameRateMillis;
-    private BitmapFactory.Options mOpts;
-    private AnimationDrawable mAnimation;
+    private DecoderThread mDecoder;
+    private BlockingQueue<Frame> mFrames;
+    private long mNextFrameTime;
+    // the frame on screen and the one before it, which the renderer may still be drawing
+    private Bitmap mShown;
+    private Bitmap mPrevious;
 
     public BootanimationImageView(Context context) {
         this(context, null);
@@ -46,72 +81,304 @@ public class BootanimationImageView extends ImageView {
 
     public BootanimationImageView(Context context, AttributeSet attributeSet, int i) {
         super(context, attributeSet, i);
-        mOpts = new BitmapFactory.Options();
-        mAnimation = new AnimationDrawable();
     }
 
     public void loadAnimation(String path) throws IOException {
-        ZipFile zip = new ZipFile(path);
-        ZipEntry entry = zip.getEntry("desc.txt");
-        BufferedReader reader = new BufferedReader(new InputStreamReader(zip.getInputStream(entry)));
-        // first line, 3rd column has # of frames per second
-        mFrameRateMillis = 1000 / Integer.parseInt(reader.readLine().split(" ")[2]);
-        String line = "";
-        mAnimationParts = new ArrayList<AnimationPart>();
-        while ((line = reader.readLine()) != null) {
-            String[] info = line.split(" ");
-            if (info.length == 4 && info[0].equals("p")) {
-                int playCount = Integer.getInteger(info[1], 1);
-                int pause = Integer.getInteger(info[2], 0);
-                String name = info[3];
-                if (playCount == 0)
-                    playCount = 10;
-                AnimationPart ap = new AnimationPart(playCount, pause, name);
-                mAnimationParts.add(ap);
+        loadAnimation(ThemeArchiveProbe.probe(path));
+    }
+
+    public void loadAnimation(ThemeArchiveProbe archive) throws IOException {
+        stopAnimation();
+        FrameTable table = getFrameTable(archive);
+        mFrameRateMillis = table.frameRateMillis;
+        mAnimationParts = table.parts;
+
+        // every frame has the same size, so the header is read once and decoded alike
+        int width = getWidth() > 0 ? getWidth() : getResources().getDisplayMetrics().widthPixels;
+        int height = getHeight() > 0 ? getHeight() : getResources().getDisplayMetrics().heightPixels;
+        mFrames = new ArrayBlockingQueue<Frame>(BUFFER_FRAMES);
+        mDecoder = new DecoderThread(archive, mAnimationParts, mFrames, width, height);
+        mDecoder.start();
+        mNextFrameTime = SystemClock.uptimeMillis();
+        mHandler.post(mShowNextFrame);
+    }
+
+    /**
+     * Stops playback and hands every decoded frame back to the BitmapPool
+     */
+    public void stopAnimation() {
+        mHandler.removeCallbacks(mShowNextFrame);
+        if (mDecoder != null) {
+            mDecoder.quit();
+            mDecoder = null;
+        }
+        if (mFrames != null) {
+            Frame frame;
+            while ((frame = mFrames.poll()) != null)
+                BitmapPool.getInstance().put(frame.bitmap);
+            mFrames = null;
+        }
+        setImageDrawable(null);
+        BitmapPool.getInstance().put(mPrevious);
+        BitmapPool.getInstance().put(mShown);
+        mPrevious = null;
+        mShown = null;
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        stopAnimation();
+    }
+
+    private final Runnable mShowNextFrame = new Runnable() {
+        @Override
+        public void run() {
+            if (mFrames == null)
+                return;
+            long delay = mFrameRateMillis;
+            Frame frame = mFrames.poll();
+            if (frame == null && !mDecoder.isAlive()) {
+                // the decoder may have queued its last frame after the poll above
+                frame = mFrames.poll();
+                if (frame == null) {
+                    // the last part played out, leave its final frame up
+                    return;
+                }
+            }
+            if (frame != null) {
+                BitmapPool.getInstance().put(mPrevious);
+                mPrevious = mShown;
+                mShown = frame.bitmap;
+                setImageBitmap(frame.bitmap);
+                delay += frame.pauseMillis;
             }
+            // a late decode holds the current frame rather than dropping the next one
+            mNextFrameTime = Math.max(mNextFrameTime + delay, SystemClock.uptimeMillis());
+            mHandler.postAtTime(this, mNextFrameTime);
         }
-        reader.close();
+    };
 
-        mOpts.inSampleSize = 2;
-        mOpts.inPreferredConfig = Bitmap.Config.RGB_565;
+    /**
+     * Returns the parts of the animation in archive with their frames in playback order,
+     * reusing the table built the last time the same archive was played
+     */
+    static FrameTable getFrameTable(ThemeArchiveProbe archive) throws IOException {
+        EntryInfo desc = archive.getEntry("desc.txt");
+        if (desc == null)
+            throw new FileNotFoundException("desc.txt");
+        // the offset tells a nested animation apart from its theme, mtime a replaced theme
+        String key = archive.getPath() + "@" + new File(archive.getPath()).lastModified()
+                + "#" + desc.localHeaderOffset;
+        FrameTable table = sFrameTables.get(key);
+        if (table == null) {
+            table = buildFrameTable(archive, desc);
+            sFrameTables.put(key, table);
+        }
+        return table;
+    }
 
-        for (AnimationPart a : mAnimationParts) {
-            for (Enumeration<? extends ZipEntry> e = zip.entries();e.hasMoreElements();) {
-                ZipEntry ze = e.nextElement();
-                if (!ze.isDirectory() && ze.getName().contains(a.partName)) {
-                    mAnimation.addFrame(loadFrame(zip.getInputStream(ze)), mFrameRateMillis);
+    private static FrameTable buildFrameTable(ThemeArchiveProbe archive, EntryInfo desc)
+            throws IOException {
+        FrameTable table = new FrameTable();
+        // parts may share a directory, so frames are grouped by directory first
+        Map<String, List<EntryInfo>> framesByDir = new HashMap<String, List<EntryInfo>>();
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(archive.openEntry(desc)));
+            try {
+                // first line, 3rd column has # of frames per second
+                table.fps = Integer.parseInt(reader.readLine().trim().split("\\s+")[2]);
+                table.frameRateMillis = 1000 / table.fps;
+                String line = "";
+                while ((line = reader.readLine()) != null) {
+                    String[] info = line.trim().split("\\s+");
+                    if (info.length == 4 && info[0].equals("p")) {
+                        int playCount = parseInt(info[1], 1);
+                        int pause = parseInt(info[2], 0);
+                        String name = info[3];
+                        List<EntryInfo> frames = framesByDir.get(name);
+                        if (frames == null) {
+                            frames = new ArrayList<EntryInfo>();
+                            framesByDir.put(name, frames);
+                        }
+                        table.parts.add(new AnimationPart(playCount, pause, name, frames));
+                    }
                 }
+            } finally {
+                reader.close();
             }
+        } catch (RuntimeException e) {
+            throw new IOException("Invalid boot animation " + archive.getPath(), e);
         }
-        zip.close();
 
-        mAnimation.setOneShot(false);
-        setImageDrawable(mAnimation);
-        mAnimation.start();
+        // one pass over the archive, frames live directly inside their part's directory
+        for (EntryInfo e : archive.getEntries()) {
+            int slash = e.name.lastIndexOf('/');
+            if (slash <= 0 || slash == e.name.length() - 1)
+                continue;
+            List<EntryInfo> frames = framesByDir.get(e.name.substring(0, slash));
+            if (frames != null)
+                frames.add(e);
+        }
+        for (List<EntryInfo> frames : framesByDir.values())
+            Collections.sort(frames, FRAME_ORDER);
+        return table;
     }
 
-    private BitmapDrawable loadFrame(InputStream is) throws FileNotFoundException {
-        BitmapDrawable drawable = new BitmapDrawable(BitmapFactory.decodeStream(is, null, mOpts));
-        drawable.setAntiAlias(true);
-        drawable.setFilterBitmap(true);
-        return drawable;
+    /**
+     * Orders frames by the number in their name so part1/9.png plays before part1/10.png,
+     * falling back to the name for frames without a number or with equal numbers
+     */
+    private static final Comparator<EntryInfo> FRAME_ORDER = new Comparator<EntryInfo>() {
+        @Override
+        public int compare(EntryInfo lhs, EntryInfo rhs) {
+            long l = getFrameNumber(lhs.name);
+            long r = getFrameNumber(rhs.name);
+            if (l != r)
+                return l < r ? -1 : 1;
+            return lhs.name.compareTo(rhs.name);
+        }
+    };
+
+    /**
+     * @return the last run of digits in the file name of entryName or -1 if it has none
+     */
+    private static long getFrameNumber(String entryName) {
+        int end = entryName.length();
+        int dot = entryName.lastIndexOf('.');
+        if (dot > entryName.lastIndexOf('/'))
+            end = dot;
+        while (end > 0 && !Character.isDigit(entryName.charAt(end - 1))) {
+            if (entryName.charAt(end - 1) == '/')
+                return -1;
+            end--;
+        }
+        int start = end;
+        while (start > 0 && Character.isDigit(entryName.charAt(start - 1)))
+            start--;
+        if (start == end || end - start > 18)
+            return -1;
+        return Long.parseLong(entryName.substring(start, end));
     }
 
-    private static class AnimationPart {
-        public int playCount;
-        public int pause;
-        String partName;
-        List<String> frames;
+    private static int parseInt(String value, int defaultValue) {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    private static class Frame {
+        final Bitmap bitmap;
+        // extra time the frame stays up, used for the pause after a part
+        final int pauseMillis;
+
+        Frame(Bitmap bitmap, int pauseMillis) {
+            this.bitmap = bitmap;
+            this.pauseMillis = pauseMillis;
+        }
+    }
+
+    /**
+     * Decodes frames in playback order, blocking whenever the ring buffer is full
+     */
+    private class DecoderThread extends Thread {
+        private final ThemeArchiveProbe mArchive;
+        private final List<AnimationPart> mParts;
+        private final BlockingQueue<Frame> mQueue;
+        private final int mWidth;
+        private final int mHeight;
+        private volatile boolean mQuit = false;
+
+        DecoderThread(ThemeArchiveProbe archive, List<AnimationPart> parts,
+                BlockingQueue<Frame> queue, int width, int height) {
+            super("BootanimationDecoder");
+            mArchive = archive;
+            mParts = parts;
+            mQueue = queue;
+            mWidth = width;
+            mHeight = height;
+        }
+
+        void quit() {
+            mQuit = true;
+            interrupt();
+        }
 
-        public AnimationPart(int playCount, int pause, String partName) {
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_DISPLAY);
+            try {
+                for (AnimationPart part : mParts) {
+                    // parts may differ in size and format, read their options separately
+                    BitmapFactory.Options opts = null;
+                    for (int i = 0; !mQuit && (part.playCount == PLAY_FOREVER || i < part.playCount); i++) {
+                        boolean decoded = false;
+                        for (int f = 0; f < part.frames.size() && !mQuit; f++) {
+                            BitmapDecoder.StreamOpener opener =
+                                    BitmapDecoder.fromArchiveEntry(mArchive, part.frames.get(f));
+                            if (opts == null) {
+                                opts = BitmapDecoder.readOptions(opener, mWidth, mHeight);
+                                if (opts == null)
+                                    continue;
+                                // an opaque first png says nothing about the frames after it
+                                if ("image/png".equals(opts.outMimeType))
+                                    opts.inPreferredConfig = Bitmap.Config.ARGB_8888;
+                            }
+                            Bitmap bmp = BitmapDecoder.decode(opener, opts);
+                            if (bmp == null)
+                                continue;
+                            decoded = true;
+                            boolean last = f == part.frames.size() - 1;
+                            Frame frame = new Frame(bmp, last ? part.pause * mFrameRateMillis : 0);
+                            try {
+                                mQueue.put(frame);
+                            } catch (InterruptedException e) {
+                                BitmapPool.getInstance().put(bmp);
+                                return;
+                            }
+                        }
+                        // nothing in the part decodes, another pass would not either
+                        if (!decoded)
+                            break;
+                    }
+                    if (mQuit)
+                        return;
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to play " + mArchive.getPath(), e);
+            } finally {
+                if (mQuit) {
+                    // stopAnimation may have drained the queue before the last put
+                    Frame frame;
+                    while ((frame = mQueue.poll()) != null)
+                        BitmapPool.getInstance().put(frame.bitmap);
+                }
+            }
+        }
+    }
+
+    /**
+     * Parsed desc.txt with the frames of every part, shared by every player of an archive
+     */
+    static class FrameTable {
+        int fps;
+        int frameRateMillis;
+        final List<AnimationPart> parts = new ArrayList<AnimationPart>();
+    }
+
+    static class AnimationPart {
+        public final int playCount;
+        public final int pause;
+        final String partName;
+        final List<EntryInfo> frames;
+
+        public AnimationPart(int playCount, int pause, String partName, List<EntryInfo> frames) {
             this.playCount = playCount;
             this.pause = pause;
             this.partName = partName;
-            frames = new ArrayList<String>();
-        }
-
-        public void addFrame(String relativePath) {
-            frames.add(relativePath);
+            this.frames = frames;
         }
     }
 }
@@ -0,0 +1,294 @@
+/*
+ * Copyright (C) 2013 The ChameleonOS Project
+ *
+ * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.thememanager.widget;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Process;
+import android.util.Log;
+
+import com.android.thememanager.BitmapDecoder;
+import com.android.thememanager.BitmapPool;
+import com.android.thememanager.ThemeArchiveProbe;
+import com.android.thememanager.ThemeArchiveProbe.EntryInfo;
+import com.android.thememanager.ThemeSummary;
+import com.android.thememanager.ThumbnailDiskCache;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Writes a copy of a theme's boot animation scaled down to the size it is previewed at
+ * into the ThumbnailDiskCache.  The copy is an ordinary boot animation archive with its
+ * frames stored as jpegs, or pngs for parts with alpha, so BootanimationImageView plays
+ * it like any other while decoding small frames at inSampleSize 1 into pooled bitmaps.
+ */
+public final class BootanimationTranscoder {
+    private static final String TAG = "BootanimationTranscoder";
+    public static final String BOOTANIMATION_ENTRY = "boots/bootanimation.zip";
+    private static final int JPEG_QUALITY = 85;
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    // a transcode takes seconds, so it gets its own thread rather than a preview decoder
+    private static final ThreadPoolExecutor sExecutor = new ThreadPoolExecutor(1, 1,
+            KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable r) {
+                    return new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            r.run();
+                        }
+                    }, "BootanimationTranscoder");
+                }
+            });
+    static {
+        sExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    // renditions being written, so a preview opened twice only transcodes once
+    private static final Set<String> sPending = new HashSet<String>();
+    // renditions that outgrew the cache, not worth writing again while the app runs
+    private static final Set<String> sOversized = new HashSet<String>();
+
+    private BootanimationTranscoder() {
+    }
+
+    /**
+     * Returns the rendition of theme's boot animation for width x height, or null if it
+     * has not been written yet
+     */
+    public static File getRendition(ThemeSummary theme, int width, int height) {
+        return ThumbnailDiskCache.getInstance().getRendition(theme, BOOTANIMATION_ENTRY,
+                width, height);
+    }
+
+    /**
+     * Writes the rendition of the animation in archive on the transcoder's background
+     * thread, one rendition at a time
+     * @return the transcode, which the caller cancels once it no longer shows the preview,
+     *         or null if the rendition is already being written or is too large to cache
+     */
+    public static Transcode transcodeAsync(ThemeSummary theme, ThemeArchiveProbe archive,
+            int width, int height) {
+        String key = theme.getThemePath() + '@' + theme.getLastModified() + '#'
+                + width + 'x' + height;
+        synchronized (sPending) {
+            if (sOversized.contains(key) || !sPending.add(key))
+                return null;
+        }
+        Transcode transcode = new Transcode(key, theme, archive, width, height);
+        sExecutor.execute(transcode);
+        return transcode;
+    }
+
+    /**
+     * Writes the rendition of the animation in archive, each frame scaled to fit
+     * width x height
+     * @return true if the rendition was added to the cache
+     */
+    public static boolean transcode(ThemeSummary theme, ThemeArchiveProbe archive, int width,
+            int height) throws IOException {
+        return transcode(theme, archive, width, height, null);
+    }
+
+    private static boolean transcode(ThemeSummary theme, ThemeArchiveProbe archive, int width,
+            int height, Transcode transcode) throws IOException {
+        ThumbnailDiskCache cache = ThumbnailDiskCache.getInstance();
+        File tmp = cache.newRenditionFile(theme, BOOTANIMATION_ENTRY, width, height);
+        if (tmp == null)
+            return false;
+        BootanimationImageView.FrameTable table = BootanimationImageView.getFrameTable(archive);
+
+        boolean written = false;
+        ZipOutputStream out = new ZipOutputStream(new BufferedOutputStream(
+                new FileOutputStream(tmp)));
+        try {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            StringBuilder desc = new StringBuilder();
+            // parts may share a directory, its frames are only written once
+            Set<String> dirs = new HashSet<String>();
+            int frameWidth = 0;
+            int frameHeight = 0;
+            long bytes = 0;
+            for (BootanimationImageView.AnimationPart part : table.parts) {
+                desc.append("p ").append(part.playCount).append(' ').append(part.pause)
+                        .append(' ').append(part.partName).append('\n');
+                if (!dirs.add(part.partName))
+                    continue;
+                // the player reads one set of decode options per part, so its frames must
+                // share a format
+                boolean alpha = hasAlpha(archive, part, width, height);
+                for (int i = 0; i < part.frames.size(); i++) {
+                    if (transcode != null && transcode.mCancelled)
+                        return false;
+                    Bitmap bmp = decodeFrame(archive, part.frames.get(i), width, height);
+                    if (bmp == null)
+                        continue;
+                    frameWidth = Math.max(frameWidth, bmp.getWidth());
+                    frameHeight = Math.max(frameHeight, bmp.getHeight());
+                    buffer.reset();
+                    bmp.compress(alpha ? Bitmap.CompressFormat.PNG : Bitmap.CompressFormat.JPEG,
+                            alpha ? 100 : JPEG_QUALITY, buffer);
+                    BitmapPool.getInstance().put(bmp);
+                    // zero padded so the frames keep their order by name as well
+                    putEntry(out, String.format("%s/%05d.%s", part.partName, i,
+                            alpha ? "png" : "jpg"), buffer);
+                    bytes += buffer.size();
+                    if (bytes > ThumbnailDiskCache.MAX_RENDITION_BYTES) {
+                        // putRendition would only throw it away
+                        if (transcode != null) {
+                            synchronized (sPending) {
+                                sOversized.add(transcode.mKey);
+                            }
+                        }
+                        return false;
+                    }
+                }
+            }
+            if (frameWidth == 0)
+                return false;
+
+            desc.insert(0, frameWidth + " " + frameHeight + " " + table.fps + "\n");
+            buffer.reset();
+            buffer.write(desc.toString().getBytes());
+            putEntry(out, "desc.txt", buffer);
+            out.close();
+            out = null;
+            written = cache.putRendition(theme, BOOTANIMATION_ENTRY, width, height, tmp);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                }
+            }
+            if (!written)
+                tmp.delete();
+        }
+        return written;
+    }
+
+    /**
+     * Returns true if any frame of part may have alpha, judged from the headers alone
+     */
+    private static boolean hasAlpha(ThemeArchiveProbe archive,
+            BootanimationImageView.AnimationPart part, int width, int height)
+            throws IOException {
+        for (EntryInfo frame : part.frames) {
+            BitmapFactory.Options opts = BitmapDecoder.readOptions(
+                    BitmapDecoder.fromArchiveEntry(archive, frame), width, height);
+            if (opts != null && opts.inPreferredConfig != Bitmap.Config.RGB_565)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Decodes frame and scales it down to fit width x height, keeping its aspect ratio
+     */
+    private static Bitmap decodeFrame(ThemeArchiveProbe archive, EntryInfo frame, int width,
+            int height) throws IOException {
+        Bitmap bmp = BitmapDecoder.decode(BitmapDecoder.fromArchiveEntry(archive, frame),
+                width, height);
+        if (bmp == null)
+            return null;
+        float scale = Math.min((float) width / bmp.getWidth(), (float) height / bmp.getHeight());
+        if (scale >= 1)
+            return bmp;
+        Bitmap scaled = Bitmap.createScaledBitmap(bmp,
+                Math.max(1, Math.round(bmp.getWidth() * scale)),
+                Math.max(1, Math.round(bmp.getHeight() * scale)), true);
+        if (scaled != bmp)
+            BitmapPool.getInstance().put(bmp);
+        return scaled;
+    }
+
+    /**
+     * A rendition being written on the transcoder's thread
+     */
+    public static final class Transcode implements Runnable {
+        private final String mKey;
+        private final ThemeSummary mTheme;
+        private final ThemeArchiveProbe mArchive;
+        private final int mWidth;
+        private final int mHeight;
+        private volatile boolean mCancelled = false;
+
+        private Transcode(String key, ThemeSummary theme, ThemeArchiveProbe archive, int width,
+                int height) {
+            mKey = key;
+            mTheme = theme;
+            mArchive = archive;
+            mWidth = width;
+            mHeight = height;
+        }
+
+        /**
+         * Stops the transcode at the next frame.  A queued one still runs, only to find
+         * itself cancelled, so the key is released by the thread that may be writing.
+         */
+        public void cancel() {
+            mCancelled = true;
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (!mCancelled)
+                    transcode(mTheme, mArchive, mWidth, mHeight, this);
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to transcode " + mArchive.getPath(), e);
+            } finally {
+                synchronized (sPending) {
+                    sPending.remove(mKey);
+                }
+            }
+        }
+    }
+
+    /**
+     * Stores data uncompressed, so frames can be read in place like any boot animation
+     */
+    private static void putEntry(ZipOutputStream out, String name, ByteArrayOutputStream data)
+            throws IOException {
+        byte[] bytes = data.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        ZipEntry entry = new ZipEntry(name);
+        entry.setMethod(ZipEntry.STORED);
+        entry.setSize(bytes.length);
+        entry.setCompressedSize(bytes.length);
+        entry.setCrc(crc.getValue());
+        out.putNextEntry(entry);
+        out.write(bytes);
+        out.closeEntry();
+    }
+}
@@ -32,6 +32,7 @@ public class FlipImageView extends ImageView implements Animator.AnimatorListene
     private int mState = STATE_NEUTRAL;
     private int mNewResourceId = 0;
     private Drawable mNewDrawable = null;
+    private ObjectAnimator mAnimator = null;
 
     public FlipImageView(Context context) {
         this(context, null);
@@ -58,6 +59,7 @@ public class FlipImageView extends ImageView implements Animator.AnimatorListene
         rotateOut.setStartDelay(startDelay);
         rotateOut.addListener(this);
         rotateOut.start();
+        mAnimator = rotateOut;
         mState = STATE_ROTATE_OUT;
     }
 
@@ -74,9 +76,25 @@ public class FlipImageView extends ImageView implements Animator.AnimatorListene
         rotateOut.setStartDelay(startDelay);
         rotateOut.addListener(this);
         rotateOut.start();
+        mAnimator = rotateOut;
         mState = STATE_ROTATE_OUT;
     }
 
+    /**
+     * Stops any flip in progress and forgets the image it was going to show
+     */
+    public void cancelFlip() {
+        mNewDrawable = null;
+        mNewResourceId = 0;
+        mState = STATE_NEUTRAL;
+        if (mAnimator != null) {
+            ObjectAnimator animator = mAnimator;
+            mAnimator = null;
+            animator.cancel();
+        }
+        setRotationY(0);
+    }
+
     @Override
     public void onAnimationStart(Animator animator) {
     }
@@ -94,9 +112,11 @@ public class FlipImageView extends ImageView implements Animator.AnimatorListene
             rotateIn.setDuration(ANIMATION_TIME);
             rotateIn.addListener(this);
             rotateIn.start();
+            mAnimator = rotateIn;
             mState = STATE_ROTATE_IN;
         } else if(mState == STATE_ROTATE_IN) {
             mState = STATE_NEUTRAL;
+            mAnimator = null;
         }
     }
 